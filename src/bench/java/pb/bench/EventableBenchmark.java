@@ -0,0 +1,86 @@
+package pb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.protocols.event.IEventCallback;
+import pb.utils.Eventable;
+
+/**
+ * Emit throughput of {@link pb.utils.Eventable} when several threads emit on
+ * the same object, as the endpoint thread, the timer and application threads
+ * do on an endpoint. The "contended" group also adds and removes a callback
+ * while the others emit. Build with the bench profile and run with JMH, e.g.
+ * <pre>
+ * mvn -Pbench compile dependency:build-classpath -Dmdep.outputFile=target/bench.cp
+ * java -cp target/classes:$(cat target/bench.cp) org.openjdk.jmh.Main EventableBenchmark
+ * </pre>
+ * @author aaron
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventableBenchmark {
+	
+	private Eventable eventable;
+	
+	private final IEventCallback churn = (args)->{};
+	
+	/**
+	 * Written by the callbacks so that they are not optimised away.
+	 */
+	public Object[] last;
+	
+	@Setup
+	public void setup() {
+		eventable = new Eventable();
+		for(int i=0;i<4;i++) {
+			eventable.on("EVENT",(args)->{last=args;});
+		}
+		// like the event protocol, which listens to everything on an endpoint
+		eventable.on("*",(args)->{last=args;});
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public boolean localEmit() {
+		return eventable.localEmit("EVENT","data");
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public boolean emit() {
+		return eventable.emit("EVENT","data");
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public boolean contendedEmit() {
+		return eventable.emit("EVENT","data");
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public Eventable contendedOnOff() {
+		return eventable.on("EVENT",churn).off("EVENT",churn);
+	}
+}
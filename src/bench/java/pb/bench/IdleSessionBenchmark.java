@@ -0,0 +1,106 @@
+package pb.bench;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pb.managers.ServerManager;
+import pb.protocols.session.SessionStartRequest;
+import pb.utils.Utils;
+
+/**
+ * Measures the memory that a server uses per idle session. A server manager
+ * is started and the given number of plain sockets connect to it and start a
+ * session, then do nothing. The heap, resident set size (on Linux) and number
+ * of threads are compared before and after. Run it once per thread mode, e.g.
+ * <pre>
+ * java -cp target/classes:... -Dpb.threads=platform pb.bench.IdleSessionBenchmark 5000
+ * java -cp target/classes:... -Dpb.threads=virtual pb.bench.IdleSessionBenchmark 5000
+ * </pre>
+ * Virtual threads need Java 21. The client sockets live in the same JVM but
+ * have no threads, so they add the same small amount in either mode. All
+ * sessions must start within the server's keep alive timeout, 40 seconds.
+ * @author aaron
+ *
+ */
+public class IdleSessionBenchmark {
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int sessions = args.length>0 ? Integer.parseInt(args[0]) : 2000;
+		int port = args.length>1 ? Integer.parseInt(args[1]) : Utils.serverPort;
+		Logger.getLogger("").setLevel(Level.SEVERE); // logging per session would dominate
+		
+		System.out.println("threads: "+(Utils.getInstance().usesVirtualThreads() ? "virtual" : "platform")
+				+", engine: "+Utils.getInstance().getProperty("pb.engine","thread")+", sessions: "+sessions);
+		long heapBefore = usedHeap();
+		long rssBefore = residentSetSize();
+		int threadsBefore = Thread.activeCount();
+		
+		AtomicInteger started = new AtomicInteger();
+		ServerManager serverManager = new ServerManager(port);
+		serverManager.on(ServerManager.sessionStarted, (eventArgs)->{
+			started.incrementAndGet();
+		});
+		serverManager.start();
+		Thread.sleep(1000); // allow the io thread to start listening
+		
+		List<Socket> sockets = new ArrayList<>(sessions);
+		String request = new SessionStartRequest().toJsonString();
+		for(int i=0;i<sessions;i++) {
+			Socket socket = new Socket(Utils.serverHost,port);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeUTF(request);
+			out.flush();
+			sockets.add(socket);
+		}
+		while(started.get()<sessions) {
+			Thread.sleep(100);
+		}
+		
+		long heapAfter = usedHeap();
+		long rssAfter = residentSetSize();
+		int threadsAfter = Thread.activeCount();
+		System.out.printf("heap per session: %d bytes%n",(heapAfter-heapBefore)/sessions);
+		if(rssBefore>0) System.out.printf("rss per session: %d bytes%n",(rssAfter-rssBefore)/sessions);
+		System.out.printf("platform threads per session: %.2f%n",(threadsAfter-threadsBefore)/(double)sessions);
+		
+		serverManager.vaderShutdown();
+		for(Socket socket : sockets) socket.close();
+		serverManager.join();
+		Utils.getInstance().cleanUp();
+		System.exit(0);
+	}
+	
+	/**
+	 * @return heap in use after a collection
+	 */
+	private static long usedHeap() throws InterruptedException {
+		System.gc();
+		Thread.sleep(200);
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+	
+	/**
+	 * @return resident set size of this process, or 0 if not known, which
+	 * includes the native stacks of platform threads
+	 */
+	private static long residentSetSize() throws IOException {
+		Path status = Paths.get("/proc/self/status");
+		if(!Files.exists(status)) return 0;
+		for(String line : Files.readAllLines(status)) {
+			if(line.startsWith("VmRSS:")) {
+				return Long.parseLong(line.replaceAll("[^0-9]",""))*1024;
+			}
+		}
+		return 0;
+	}
+}
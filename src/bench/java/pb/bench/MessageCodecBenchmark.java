@@ -0,0 +1,118 @@
+package pb.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.MessageCodec;
+import pb.protocols.ProtocolRegistry;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveRequest;
+
+/**
+ * Time to decode and encode messages with {@link pb.protocols.MessageCodec}
+ * compared with json-simple, which {@link pb.protocols.Document} uses, and
+ * with {@link pb.protocols.BinaryCodec}.
+ * The json-simple decode is the path {@link pb.protocols.Message#toMessage(String)}
+ * took before, {@link pb.protocols.Document#parse(String)} and then the
+ * registry. Build with the bench profile and run with JMH, e.g.
+ * <pre>
+ * mvn -Pbench compile dependency:build-classpath -Dmdep.outputFile=target/bench.cp
+ * java -cp target/classes:$(cat target/bench.cp) org.openjdk.jmh.Main MessageCodecBenchmark
+ * </pre>
+ * @author aaron
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+	/**
+	 * A keep alive, a small event, and a batch of 32 events.
+	 */
+	@Param({"keepalive", "event", "batch"})
+	public String message;
+
+	private String json;
+
+	private Document doc;
+
+	private Message msg;
+
+	private byte[] binary;
+
+	@Setup
+	public void setup() throws InvalidMessage {
+		switch(message) {
+		case "keepalive":
+			msg = new KeepAliveRequest();
+			break;
+		case "event":
+			msg = new EventRequest("BOARD_PATH_UPDATE","5%host:3100:board%1%{\"colour\":\"black\",\"x\":12,\"y\":34}");
+			break;
+		default:
+			ArrayList<Document> events = new ArrayList<>();
+			for(int i=0;i<32;i++) {
+				events.add(EventBatchRequest.event("cursor","{\"x\":"+i+",\"y\":"+(i*2)+"}"));
+			}
+			msg = new EventBatchRequest(events);
+		}
+		msg.setTimeoutId(12345);
+		json = msg.toJsonString();
+		doc = Document.parse(json);
+		ByteBuffer buffer = msg.toBinary(0);
+		binary = new byte[buffer.remaining()];
+		buffer.get(binary);
+	}
+
+	@Benchmark
+	public Message decodeJsonSimple() throws InvalidMessage {
+		Document parsed = Document.parse(json);
+		return ProtocolRegistry.getInstance().toMessage(parsed.getString("name"),parsed);
+	}
+
+	@Benchmark
+	public Message decodeStreaming() throws InvalidMessage {
+		return Message.toMessage(json);
+	}
+
+	@Benchmark
+	public String encodeJsonSimple() {
+		return doc.toJson();
+	}
+
+	@Benchmark
+	public String encodeStreaming() {
+		return MessageCodec.encode(doc);
+	}
+
+	@Benchmark
+	public Message decodeBinary() throws InvalidMessage {
+		return Message.toMessage(binary,0,binary.length);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeBinary() {
+		return msg.toBinary(4);
+	}
+}
@@ -1,18 +1,23 @@
 package pb;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -29,12 +34,56 @@ import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Framing;
+import pb.protocols.session.Capabilities;
+import pb.transfer.ChunkReceiver;
+import pb.transfer.ChunkSender;
+import pb.transfer.DataServer;
+import pb.transfer.DownloadState;
+import pb.transfer.HashTree;
+import pb.transfer.IRangeRequester;
+import pb.transfer.MappedFileCache;
+import pb.transfer.MappedFileCache.SharedFile;
+import pb.transfer.SwarmDownload;
+import pb.transfer.TokenBucket;
 import pb.utils.Utils;
 
 /**
  * The FileSharingPeer is a simple example of using a PeerManager to control
  * both a server and any number of client connections to a server/peers.
  * <br/>
+ * Files are sent on data connections of their own, see
+ * {@link pb.transfer.DataServer}, and a file is downloaded from every peer
+ * that the index server says has it, see {@link pb.transfer.SwarmDownload}:
+ * each peer is asked for pieces of the file with {@link #getFileRange} and
+ * answers with {@link #fileChannel}, saying where to connect to receive the
+ * raw bytes, and the pieces of a peer that is slow or fails are fetched from
+ * the others. If the property {@code pb.dataChannel} is "false" the file is
+ * got from one peer as Base64 chunks in {@link #fileContents} events
+ * instead. Peers still answer {@link #getFileChannel} for the whole file.
+ * <br/>
+ * Shared files are hashed when sharing starts, see
+ * {@link pb.transfer.HashTree}, and the root hash of each is given to the
+ * index server with the file, so that it can give all of the peers that
+ * share the same content under any name. A downloading peer asks one of
+ * them for the hashes of the chunks with {@link #getFileHashes}, checks them
+ * against the root, and checks each piece as it arrives, fetching chunks
+ * that are wrong again. Peers are asked for content by its root hash.
+ * <br/>
+ * A download that is cut short leaves the part of the file that arrived and
+ * a state file next to it, see {@link pb.transfer.DownloadState}, and when
+ * the file is downloaded again only the missing ranges are got, with
+ * {@link #getFileRange} or {@link #getFilePart}.
+ * <br/>
+ * Chunks in events are sent as fast as the downloading peer grants credit
+ * for them with {@link #fileCredit}, see {@link pb.transfer.ChunkSender}.
+ * Credit is used only when both peers agree on it as a session feature, a
+ * peer that doesn't know it is sent chunks as fast as the endpoint takes
+ * them.
+ * Uploads can be rate limited per transfer with the property
+ * {@code pb.transferRate} and per downloading peer with {@code pb.peerRate},
+ * both in bytes per second and 0 (the default) for unlimited, whichever way
+ * the file is sent.
  * 
  * @author aaron
  *
@@ -75,6 +124,154 @@ public class FileSharingPeer {
 	 */
 	private static final String fileError = "FILE_ERROR";
 	
+	/**
+	 * Emitted by a peer getting a file with {@link #getFile} to allow more
+	 * chunks to be sent, after the request and then as chunks arrive. The
+	 * single argument is the total number of chunks of the file that may
+	 * have been sent so far, as a string. Only emitted in sessions that
+	 * agreed on it as a feature, see {@link Capabilities#hasFeature(String)}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileCredit = "FILE_CREDIT";
+	
+	/**
+	 * Emitted when a peer wants to get part of a file from another peer, sent
+	 * as for {@link #getFile}. The single argument has the format
+	 * position:length:filename, and the range ends sooner if the file does.
+	 * Only emitted in sessions that agreed on it as a feature, otherwise the
+	 * whole file is got again with {@link #getFile}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFilePart = "GET_FILE_PART";
+	
+	static {
+		Capabilities.addLocalFeature(fileCredit);
+		Capabilities.addLocalFeature(getFilePart);
+	}
+	
+	/**
+	 * Emitted when a peer wants to get a file from another peer over a data
+	 * connection. The single argument is a string that is the filename to get.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFileChannel = "GET_FILE_CHANNEL";
+	
+	/**
+	 * Emitted when a peer wants to get part of a file from another peer over a
+	 * data connection. The single argument has the format
+	 * position:length:filename, and the range ends sooner if the file does.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFileRange = "GET_FILE_RANGE";
+	
+	/**
+	 * Emitted when a peer wants the hashes of the chunks of a file. The single
+	 * argument is the filename or the root hash of the content.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFileHashes = "GET_FILE_HASHES";
+	
+	/**
+	 * Emitted in answer to {@link #getFileHashes}, a number of times. The
+	 * single argument has the format first:hashes, where first is the number
+	 * of the first chunk and the hashes are the Base64 encoded hashes of that
+	 * chunk and the ones after it. If the argument is the empty string "" it
+	 * indicates there are no more hashes.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileHashes = "FILE_HASHES";
+	
+	/**
+	 * Most hashes in a {@link #fileHashes} event, fewer if the session's
+	 * frames can't carry that many, see {@link #hashesPerEvent(Endpoint)}.
+	 */
+	private static final int hashesPerEvent = 4096;
+	
+	/**
+	 * Bytes of a {@link #fileHashes} event's frame that are not its hashes,
+	 * at most.
+	 */
+	private static final int hashEventOverhead = 1024;
+	
+	/**
+	 * Emitted in answer to {@link #getFileChannel} and {@link #getFileRange},
+	 * with where to connect to receive the bytes. The single argument has the
+	 * format port:token:length:size, where the token is a hex number to send
+	 * on the data connection, the length is the number of bytes offered and
+	 * the size is the number of bytes in the file.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileChannel = "FILE_CHANNEL";
+	
+	/**
+	 * Whether to get files over data connections, from the property
+	 * {@code pb.dataChannel}, default "true".
+	 */
+	private static final boolean useDataChannel = Boolean.parseBoolean(
+			Utils.getInstance().getProperty("pb.dataChannel","true"));
+	
+	/**
+	 * Time in ms to wait for the index server to answer a query for all of
+	 * the peers that have files, before asking it the older query that it
+	 * will answer if it does not know the newer one, from the property
+	 * {@code pb.queryPeersTimeout}, default 5000.
+	 */
+	private static final long queryPeersTimeout = Long.parseLong(
+			Utils.getInstance().getProperty("pb.queryPeersTimeout","5000"));
+	
+	/**
+	 * Sends shared files on data connections, null when not sharing.
+	 */
+	private static DataServer dataServer=null;
+	
+	/**
+	 * Chunks in flight when getting a file as events, from the property
+	 * {@code pb.chunkWindow}, default 16.
+	 */
+	private static final int chunkWindow = Integer.parseInt(
+			Utils.getInstance().getProperty("pb.chunkWindow","16"));
+	
+	/**
+	 * Upload rate limits in bytes per second, 0 for unlimited.
+	 */
+	private static final long transferRate = Long.parseLong(
+			Utils.getInstance().getProperty("pb.transferRate","0"));
+	
+	private static final long peerRate = Long.parseLong(
+			Utils.getInstance().getProperty("pb.peerRate","0"));
+	
+	/**
+	 * Rate limits shared by the uploads to each peer.
+	 */
+	private static final Map<InetAddress,TokenBucket> peerLimits = new ConcurrentHashMap<>();
+	
+	/**
+	 * Hash trees of the files being shared, and the names of the shared files
+	 * by the root hashes of their content.
+	 */
+	private static final Map<String,HashTree> hashTrees = new ConcurrentHashMap<>();
+	
+	private static final Map<String,String> sharedRoots = new ConcurrentHashMap<>();
+	
+	/**
+	 * Chunk senders of the endpoints of peers connected to us.
+	 */
+	private static final Map<Endpoint,ChunkSender> chunkSenders = new ConcurrentHashMap<>();
+	
 	/**
 	 * port to use for this peer's server
 	 */
@@ -92,65 +289,170 @@ public class FileSharingPeer {
 	private static String host=Utils.serverHost; // default host for the index server
 	
 	/**
-	 * chunk size to use (bytes) when transferring a file
+	 * 
+	 * @param endpoint
+	 * @return the rate limit shared by uploads to the endpoint's peer, or
+	 * null if there is none
 	 */
-	private static int chunkSize=Utils.chunkSize;
+	private static TokenBucket peerLimit(Endpoint endpoint) {
+		if(peerRate<=0) return null;
+		return peerLimits.computeIfAbsent(endpoint.getOtherAddress(),(address)->new TokenBucket(peerRate));
+	}
 	
 	/**
-	 * buffer for file reading
+	 * 
+	 * @return the rate limit of a new upload, or null if there is none
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static TokenBucket transferLimit() {
+		return transferRate>0 ? new TokenBucket(transferRate) : null;
+	}
 	
 	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
-	 * @param in the file input stream
-	 * @param endpoint the endpoint to send the file
+	 * Test for the file existence and then start transmitting it, as
+	 * chunks are granted by {@link #fileCredit} if the session agreed on
+	 * it. Emit {@link #fileError} if
+	 * file can't be accessed.
+	 * @param filename
+	 * @param endpoint
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+	public static void startTransmittingFile(String filename,Endpoint endpoint) {
+		startTransmittingFile(filename,0,Long.MAX_VALUE,endpoint);
+	}
+	
+	/**
+	 * Test for the file existence and then start transmitting a range of it,
+	 * as chunks are granted by {@link #fileCredit} if the session agreed on
+	 * it. Emit {@link #fileError} if file can't be accessed.
+	 * @param filename
+	 * @param position of the first byte
+	 * @param length most bytes to send
+	 * @param endpoint
+	 */
+	public static void startTransmittingFile(String filename,long position,long length,Endpoint endpoint) {
+		if(position<0 || length<0) {
+			endpoint.emit(fileError,"bad range of "+filename+": "+position+":"+length);
+			return;
+		}
 		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
-			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
-					in.close();
-				} else {
-					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
-				}
-			}
+			SharedFile in = MappedFileCache.getInstance().open(filename);
+			chunkSenders.computeIfAbsent(endpoint,(e)->new ChunkSender(e,fileContents,fileError,peerLimit(e)))
+				.start(in,position,length,transferLimit(),credited(endpoint));
 		} catch (IOException e) {
 			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
 	/**
-	 * Test for the file existence and then start transmitting it. Emit
-	 * {@link #fileError} if file can't be accessed.
+	 * 
+	 * @param endpoint
+	 * @return whether chunks in events are sent as they are granted by
+	 * {@link #fileCredit} in the endpoint's session
+	 */
+	private static boolean credited(Endpoint endpoint) {
+		return endpoint.getCapabilities().hasFeature(fileCredit);
+	}
+	
+	/**
+	 * Offer a file on the data server and tell the other peer where to get
+	 * it. Emit {@link #fileError} if the file can't be accessed.
 	 * @param filename
 	 * @param endpoint
 	 */
-	public static void startTransmittingFile(String filename,Endpoint endpoint) {
+	public static void startOfferingFile(String filename,Endpoint endpoint) {
+		startOfferingFile(filename,0,Long.MAX_VALUE,endpoint);
+	}
+	
+	/**
+	 * Offer part of a file on the data server and tell the other peer where
+	 * to get it. Emit {@link #fileError} if the file can't be accessed or
+	 * the range starts past its end.
+	 * @param filename
+	 * @param position of the first byte
+	 * @param length most bytes to offer
+	 * @param endpoint
+	 */
+	public static void startOfferingFile(String filename,long position,long length,Endpoint endpoint) {
+		if(dataServer==null) {
+			endpoint.emit(fileError,"data connections are not available");
+			return;
+		}
 		try {
-			InputStream in = new FileInputStream(filename);
-			continueTransmittingFile(in,endpoint);
-		} catch (FileNotFoundException e) {
+			SharedFile file = MappedFileCache.getInstance().open(filename);
+			long size = file.size();
+			if(position<0 || length<0 || position>size) {
+				file.close();
+				endpoint.emit(fileError,"bad range of "+filename+": "+position+":"+length);
+				return;
+			}
+			length = Math.min(length,size-position);
+			long token = dataServer.offer(file,position,length,transferLimit(),peerLimit(endpoint));
+			endpoint.emit(fileChannel,dataServer.getPort()+":"+Long.toHexString(token)+":"+length+":"+size);
+		} catch (IOException e) {
 			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
+	/**
+	 * 
+	 * @param name a filename, or the root hash of the content of a shared file
+	 * @return the filename
+	 */
+	private static String sharedFile(String name) {
+		return sharedRoots.getOrDefault(name,name);
+	}
+	
+	/**
+	 * Send the hashes of the chunks of a shared file, emit {@link #fileError}
+	 * if it was not hashed.
+	 * @param name the filename or the root hash of its content
+	 * @param endpoint
+	 */
+	public static void sendHashes(String name,Endpoint endpoint) {
+		HashTree tree = hashTrees.get(sharedFile(name));
+		if(tree==null) {
+			endpoint.emit(fileError,"no hashes of "+name);
+			return;
+		}
+		int perEvent = hashesPerEvent(endpoint);
+		for(int first=0;first<tree.getChunks();first+=perEvent) {
+			byte[] hashes = tree.getLeaves(first,perEvent);
+			endpoint.emit(fileHashes,first+":"+new String(Base64.encodeBase64(hashes),StandardCharsets.US_ASCII));
+		}
+		endpoint.emit(fileHashes,"");
+	}
+	
+	/**
+	 * 
+	 * @param endpoint
+	 * @return most hashes that fit in a {@link #fileHashes} event, as
+	 * Base64, in the largest frame the endpoint's session may send
+	 */
+	private static int hashesPerEvent(Endpoint endpoint) {
+		Capabilities agreed = endpoint.getCapabilities();
+		long frameSize = agreed.getMaxFrameSize();
+		if(!agreed.getFraming().isLengthPrefixed()) frameSize = Math.min(frameSize,Framing.utfMaxFrameSize);
+		long hashes = (frameSize-hashEventOverhead)/4*3/HashTree.hashSize;
+		return (int)Math.max(1,Math.min(hashesPerEvent,hashes));
+	}
+	
+	/**
+	 * Hash the files to share, those that can't be read are shared without
+	 * hashes.
+	 * @param filenames
+	 */
+	private static void hashFiles(List<String> filenames) {
+		for(String filename : filenames) {
+			try(FileChannel file = FileChannel.open(Paths.get(filename),StandardOpenOption.READ)) {
+				HashTree tree = HashTree.of(file);
+				hashTrees.put(filename,tree);
+				sharedRoots.put(tree.getRootHex(),filename);
+				System.out.println("Hashed file "+filename+": "+tree.getRootHex());
+			} catch (IOException e) {
+				System.out.println("Could not hash file "+filename+": "+e.getMessage());
+			}
+		}
+	}
+	
 	/**
 	 * Emit a filename as an index update if possible, close when all done.
 	 * @param filenames
@@ -165,6 +467,9 @@ public class FileSharingPeer {
 			log.info("Sending index update: "+peerport+":"+filename);
 			// an index update has the format: host:port:filename
 			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
+			HashTree tree = hashTrees.get(filename);
+			// and then its content as host:port:root:filename
+			if(tree!=null) endpoint.emit(IndexServer.indexContentUpdate, peerport+":"+tree.getRootHex()+":"+filename);
 			Utils.getInstance().setTimeout(()->{
 				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
 			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
@@ -217,6 +522,8 @@ public class FileSharingPeer {
 		for(String file : files) {
 			filenames.add(file);
 		}
+        hashFiles(filenames);
+        dataServer = new DataServer();
         PeerManager peerManager = new PeerManager(peerPort);
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
@@ -225,12 +532,50 @@ public class FileSharingPeer {
         		String filename = (String) args2[0];
         		System.out.println("Peer is requesting file: "+filename);
         		startTransmittingFile(filename,endpoint);
+        	}).on(getFilePart,(args2)->{
+        		String[] range = ((String) args2[0]).split(":",3);
+        		System.out.println("Peer is requesting part of a file: "+args2[0]);
+        		try {
+        			startTransmittingFile(sharedFile(range[2]),Long.parseLong(range[0]),Long.parseLong(range[1]),endpoint);
+        		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        			endpoint.emit(fileError,"bad range request: "+args2[0]);
+        		}
+        	}).on(getFileChannel,(args2)->{
+        		String filename = (String) args2[0];
+        		System.out.println("Peer is requesting file on a data connection: "+filename);
+        		startOfferingFile(filename,endpoint);
+        	}).on(getFileRange,(args2)->{
+        		String[] range = ((String) args2[0]).split(":",3);
+        		System.out.println("Peer is requesting part of a file: "+args2[0]);
+        		try {
+        			startOfferingFile(sharedFile(range[2]),Long.parseLong(range[0]),Long.parseLong(range[1]),endpoint);
+        		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        			endpoint.emit(fileError,"bad range request: "+args2[0]);
+        		}
+        	}).on(getFileHashes,(args2)->{
+        		String name = (String) args2[0];
+        		System.out.println("Peer is requesting the hashes of a file: "+name);
+        		sendHashes(name,endpoint);
+        	}).on(fileCredit,(args2)->{
+        		ChunkSender sender = chunkSenders.get(endpoint);
+        		try {
+        			if(sender!=null) sender.grant(Long.parseLong((String) args2[0]));
+        		} catch (NumberFormatException e) {
+        			System.out.println("Peer sent bad credit: "+args2[0]);
+        		}
+        	}).on(Endpoint.endpointWritable,(args2)->{
+        		ChunkSender sender = chunkSenders.get(endpoint);
+        		if(sender!=null) sender.writable();
         	});
         }).on(PeerManager.peerStopped,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+        	ChunkSender sender = chunkSenders.remove(endpoint);
+        	if(sender!=null) sender.stop();
         }).on(PeerManager.peerError,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
+        	ChunkSender sender = chunkSenders.remove(endpoint);
+        	if(sender!=null) sender.stop();
         	System.out.println("There was an error communicating with the peer: "
         			+endpoint.getOtherEndpointId());
         }).on(PeerManager.peerServerManager, (args)->{
@@ -253,11 +598,13 @@ public class FileSharingPeer {
         System.out.println("Press RETURN to stop sharing");
         input.readLine();
         System.out.println("RETURN pressed, stopping the peer");
+        dataServer.shutDown();
         peerManager.shutdown();
 	}
 	
 	/**
 	 * Process a query response from the index server and download the file
+	 * as events, resuming the download if it was cut short before.
 	 * @param queryResponse
 	 * @throws InterruptedException 
 	 */
@@ -276,52 +623,215 @@ public class FileSharingPeer {
 			return;
 		}
 		try {
-			OutputStream out = new FileOutputStream(parts[2]);
+			FileChannel out = FileChannel.open(Paths.get(parts[2]),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+			ChunkReceiver receiver = new ChunkReceiver(out,DownloadState.open(parts[2],out),chunkWindow);
 			clientManager.on(PeerManager.peerStarted, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				endpoint.on(fileContents,(args2)->{
 					String chunk = (String) args2[0];
-					if(chunk.length()==0) {
-						// file download complete
-						try {
-							out.close();
-						} catch (IOException e) {
-							System.out.println("Possible error with downloaded file: "+parts[2]);
+					try {
+						if(chunk.length()==0) {
+							// range complete
+							if(!getNextRange(parts[2],endpoint,receiver)) {
+								receiver.finish();
+								System.out.println("Received file "+parts[2]);
+								clientManager.shutdown();
+							}
+						} else {
+							long granted = receiver.received(ByteBuffer.wrap(Base64.decodeBase64(chunk)));
+							if(granted>=0 && credited(endpoint)) endpoint.emit(fileCredit, String.valueOf(granted));
 						}
+					} catch (IOException e) {
+						System.out.println("Error writing file "+parts[2]+": "+e.getMessage());
 						clientManager.shutdown();
-					} else {
-						try {
-							out.write(Base64.decodeBase64(chunk));
-						} catch (IOException e) {
-							System.out.println("Error writing file chunk: "+chunk);
-						}
 					}
 				}).on(fileError, (args2)->{
 					System.out.println("Error downloading file");
 					clientManager.shutdown();
 				});
-				System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
-				endpoint.emit(getFile, parts[2]);
+				if(getNextRange(parts[2],endpoint,receiver)) {
+					System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
+				} else {
+					System.out.println("Already have file "+parts[2]);
+					try {
+						receiver.finish();
+					} catch (IOException e) {
+						System.out.println("Possible error with downloaded file: "+parts[2]);
+					}
+					clientManager.shutdown();
+				}
 			}).on(PeerManager.peerStopped, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+				keepPartialFile(parts[2],receiver);
 			}).on(PeerManager.peerError, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				System.out.println("There was error while communication with peer: "
 						+endpoint.getOtherEndpointId());
+				keepPartialFile(parts[2],receiver);
 			});
 			clientManager.start();
 			// we can't call clientManager.join() because the thread that called this method is
 			// the endpoint thread from the query to the index server, which needs
 			// to continue to process its session, so we can join with this later
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			System.out.println("Could not create file: "+parts[2]);
 		}	
 		
 	}
 	
+	/**
+	 * Ask for the next missing range of a file as chunks in events, granting
+	 * credit for the first window of chunks if the session agreed on it.
+	 * @param filename
+	 * @param endpoint the session with the sharing peer
+	 * @param receiver of the download
+	 * @return false if no ranges are missing
+	 */
+	private static boolean getNextRange(String filename,Endpoint endpoint,ChunkReceiver receiver) {
+		long[] range = receiver.next();
+		if(range==null) return false;
+		if((range[0]!=0 || range[1]!=Long.MAX_VALUE) && !endpoint.getCapabilities().hasFeature(getFilePart)) {
+			System.out.println("Peer can't send part of a file, getting all of "+filename);
+			range = receiver.restart();
+		}
+		if(range[0]==0 && range[1]==Long.MAX_VALUE) {
+			// the whole file, which peers without ranges understand too
+			endpoint.emit(getFile, filename);
+		} else {
+			endpoint.emit(getFilePart, range[0]+":"+range[1]+":"+filename);
+		}
+		long granted = receiver.start();
+		if(credited(endpoint)) endpoint.emit(fileCredit, String.valueOf(granted));
+		return true;
+	}
+	
+	/**
+	 * Keep what has arrived of a file when its download stops, to resume it
+	 * later.
+	 * @param filename
+	 * @param receiver of the download
+	 */
+	private static void keepPartialFile(String filename,ChunkReceiver receiver) {
+		try {
+			receiver.abandon();
+		} catch (IOException e) {
+			System.out.println("Could not save the state of "+filename+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Process a query response from the index server that lists all of the
+	 * peers that have a file, and download it from all of them at once,
+	 * resuming the download if it was cut short before.
+	 * @param peerManager
+	 * @param response
+	 * @throws InterruptedException
+	 */
+	private static void getFileFromPeers(PeerManager peerManager,String response) throws InterruptedException {
+		// response has the format: PeerIP:PeerPort,PeerIP:PeerPort,... root filename
+		String[] parts=response.split(" ",3);
+		if(parts.length!=3) {
+			System.out.println("Response from index server is bad: "+response);
+			return;
+		}
+		String root = parts[1].equals("-") ? null : parts[1];
+		String filename=parts[2];
+		// peers are asked for the content, which they may share under other names
+		String name = root!=null ? root : filename;
+		SwarmDownload swarm;
+		try {
+			// read too, to check the pieces
+			FileChannel out = FileChannel.open(Paths.get(filename),StandardOpenOption.CREATE,
+					StandardOpenOption.READ,StandardOpenOption.WRITE);
+			swarm = new SwarmDownload(filename,out,DownloadState.open(filename,out),root);
+		} catch (IOException e) {
+			System.out.println("Could not create file: "+filename);
+			return;
+		}
+		List<ClientManager> clientManagers = new ArrayList<>();
+		Map<Endpoint,SwarmDownload.Source> sources = new ConcurrentHashMap<>();
+		for(String peer : parts[0].split(",")) {
+			String[] peerport=peer.split(":");
+			ClientManager clientManager;
+			try {
+				clientManager = peerManager.connect(Integer.valueOf(peerport[1]),peerport[0]);
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				System.out.println("Response from index server is bad, peer is not host:port: "+peer);
+				continue;
+			} catch (UnknownHostException e) {
+				System.out.println("Could not find the peer IP address: "+peerport[0]);
+				continue;
+			}
+			clientManager.on(PeerManager.peerStarted, (args)->{
+				Endpoint endpoint = (Endpoint)args[0];
+				SwarmDownload.Source source = new SwarmDownload.Source(peerport[0],new IRangeRequester() {
+					@Override
+					public void request(long position, long length) {
+						endpoint.emit(getFileRange, position+":"+length+":"+name);
+					}
+					
+					@Override
+					public void requestHashes() {
+						endpoint.emit(getFileHashes, name);
+					}
+				});
+				sources.put(endpoint,source);
+				ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+				endpoint.on(fileChannel,(args2)->{
+					String[] offer = ((String) args2[0]).split(":");
+					try {
+						swarm.offered(source,Integer.parseInt(offer[0]),Long.parseUnsignedLong(offer[1],16),
+								Long.parseLong(offer[2]),Long.parseLong(offer[3]));
+					} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+						swarm.failed(source,"bad data connection offer: "+args2[0]);
+					}
+				}).on(fileHashes,(args2)->{
+					String page = (String) args2[0];
+					try {
+						if(page.length()==0) {
+							swarm.hashes(source,HashTree.fromLeaves(hashes.toByteArray()));
+							return;
+						}
+						String[] hashPage = page.split(":",2);
+						if(Integer.parseInt(hashPage[0])*HashTree.hashSize!=hashes.size()) {
+							throw new IllegalArgumentException("hashes out of order");
+						}
+						hashes.writeBytes(Base64.decodeBase64(hashPage[1]));
+					} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+						swarm.failed(source,"bad hashes: "+e.getMessage());
+					}
+				}).on(fileError, (args2)->{
+					swarm.failed(source,"error from peer: "+args2[0]);
+				});
+				System.out.println("Getting file "+filename+" from "+endpoint.getOtherEndpointId());
+				swarm.addSource(source);
+			}).on(PeerManager.peerStopped, (args)->{
+				Endpoint endpoint = (Endpoint)args[0];
+				SwarmDownload.Source source = sources.remove(endpoint);
+				if(source!=null) swarm.failed(source,"disconnected");
+			}).on(PeerManager.peerError, (args)->{
+				Endpoint endpoint = (Endpoint)args[0];
+				System.out.println("There was error while communication with peer: "
+						+endpoint.getOtherEndpointId());
+				SwarmDownload.Source source = sources.remove(endpoint);
+				if(source!=null) swarm.failed(source,"session error");
+			});
+			clientManagers.add(clientManager);
+		}
+		swarm.getResult().whenComplete((size,e)->{
+			if(e!=null) System.out.println("Error downloading file "+filename+": "+e.getMessage());
+			else System.out.println("Received file "+filename+", "+size+" bytes");
+			for(ClientManager clientManager : clientManagers) clientManager.shutdown();
+		});
+		for(ClientManager clientManager : clientManagers) clientManager.start();
+	}
+	
 	/**
 	 * Query the index server for the keywords and download files for each of the query responses.
+	 * With data connections all of the peers that have each file are asked for,
+	 * to download it from all of them, unless the index server does not
+	 * answer that query in time, when it is asked for one peer per file.
 	 * @param keywords list of keywords to query for and download matching files
 	 * @throws InterruptedException 
 	 * @throws UnknownHostException 
@@ -330,11 +840,34 @@ public class FileSharingPeer {
 		String query = String.join(",",keywords);
 		// connect to the index server and tell it the files we are sharing
 		PeerManager peerManager = new PeerManager(peerPort);
+		// different content can be shared under the same name, only one is got
+		Set<String> downloading = new HashSet<>();
+		// whether the query for all peers is waiting, was answered, or was given up on
+		final int waiting=0, answered=1, gaveUp=2;
+		AtomicInteger peersQuery = new AtomicInteger(useDataChannel ? waiting : gaveUp);
         ClientManager clientManager = peerManager.connect(indexServerPort, host);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.queryResponse, (args2)->{
+			endpoint.on(IndexServer.queryPeersResponse, (args2)->{
+				peersQuery.compareAndSet(waiting,answered);
+				if(peersQuery.get()!=answered) return; // too late, the older query was sent
+				String response = (String) args2[0];
+				String[] parts = response.split(" ",3);
+				if(response.length()==0) {
+					System.out.println("Received all responses.");
+					clientManager.shutdown();
+				} else if(parts.length==3 && !downloading.add(parts[2])) {
+					System.out.println("Already getting a file of that name, ignoring: "+response);
+				} else {
+					System.out.println("Received query response: "+response);
+					try {
+						getFileFromPeers(peerManager,response);
+					} catch (InterruptedException e) {
+						System.out.println("interrupted while trying to download: "+response);
+					}
+				}
+			}).on(IndexServer.queryResponse, (args2)->{
 				String response = (String) args2[0];
 				if(response.length()==0) {
 					System.out.println("Received all responses.");
@@ -352,7 +885,17 @@ public class FileSharingPeer {
 				clientManager.shutdown();
 			});
 			System.out.println("Sending query to the index server.");
-			endpoint.emit(IndexServer.queryIndex, query);
+			if(!useDataChannel) {
+				endpoint.emit(IndexServer.queryIndex, query);
+				return;
+			}
+			endpoint.emit(IndexServer.queryPeers, query);
+			Utils.getInstance().setTimeout(()->{
+				if(peersQuery.compareAndSet(waiting,gaveUp)) {
+					System.out.println("Index server did not answer the query for all peers, asking for one peer per file.");
+					endpoint.emit(IndexServer.queryIndex, query);
+				}
+			}, queryPeersTimeout);
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
@@ -54,6 +54,27 @@ public class IndexServer {
 	 */
 	public static final String queryIndex = "QUERY_INDEX";
 	
+	/**
+	 * Emitted to tell the index the content of a file, after it has been
+	 * added with {@link #indexUpdate}. The argument must have the format
+	 * "host:port:root:filename", where the root is the root hash of the
+	 * content in hex, see {@link pb.transfer.HashTree}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexContentUpdate = "INDEX_CONTENT_UPDATE";
+	
+	/**
+	 * Emitted to query the index for keywords, asking for every peer that has
+	 * each file that matches rather than just one. The argument
+	 * must have the format "keyword,keyword,..."
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryPeers = "QUERY_PEERS";
+	
 	/**
 	 * Emitted to tell the index server that your peer is
 	 * available for other peers to connect to it. The argument
@@ -87,6 +108,21 @@ public class IndexServer {
 	 */
 	public static final String queryResponse = "QUERY_RESPONSE";
 	
+	/**
+	 * Emitted as a response to {@link #queryPeers}. The argument either gives
+	 * a response in the form "host:port,host:port,... root filename", or the
+	 * empty string "" to mean no more responses remain. The root is the root
+	 * hash of the content, and the peers are all of those that share that
+	 * content, under any name, from the most recently seen. Files with the
+	 * same content are only given once. If no peer has said what the content
+	 * of the file is the root is "-" and the peers are those that share a
+	 * file of that name.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryPeersResponse = "QUERY_PEERS_RESPONSE";
+	
 	/**
 	 * Emitted when the query was in error. No argument is given.
 	 */
@@ -104,6 +140,15 @@ public class IndexServer {
 	 */
 	public static final Map<String,Long> lastTimeSeen=new HashMap<>();
 	
+	/**
+	 * Root hash of content to the "PeerIP:PeerPort" strings that share it,
+	 * and "filename" to the root hashes of the content shared under that name.
+	 * Both are guarded by keyValueMap.
+	 */
+	public static final Map<String,Set<String>> contentMap=new HashMap<>();
+	
+	public static final Map<String,Set<String>> fileRoots=new HashMap<>();
+	
 	/**
 	 * The default port number for the server.
 	 */
@@ -125,39 +170,78 @@ public class IndexServer {
 		}
 	}
 	
+	/**
+	 * Update the index with the content of a file that a peer shares.
+	 * @param filename
+	 * @param root hash of the content
+	 * @param peerport
+	 */
+	private static void indexContentUpdate(String filename,String root,String peerport) {
+		synchronized(keyValueMap) {
+			contentMap.computeIfAbsent(root,(r)->new HashSet<String>()).add(peerport);
+			fileRoots.computeIfAbsent(filename,(f)->new HashSet<String>()).add(root);
+		}
+	}
+	
+	/**
+	 * Sort peers from the most recently seen. Called while holding the
+	 * lastTimeSeen lock.
+	 * @param peers
+	 * @return the peers
+	 */
+	private static List<String> mostRecentFirst(Set<String> peers) {
+		List<String> sorted = new ArrayList<String>(peers);
+		Collections.sort(sorted,
+		new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				// sort largest to smallest
+				return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
+			}
+		});
+		return sorted;
+	}
+	
 	/**
 	 * Transmit a response for each hit. Return the peer that has the file
 	 * and that was the most recently seen, to try and make sure its still
-	 * online.
+	 * online, or all of the peers that have its content if asked for.
 	 * @param hits
 	 * @param client
+	 * @param allPeers whether to give all of the peers, with {@link #queryPeersResponse}
+	 * @param sentRoots content already given, so it is not given again
 	 */
-	private static void transmitHits(List<String> hits,Endpoint client) {
+	private static void transmitHits(List<String> hits,Endpoint client,boolean allPeers,
+			Set<String> sentRoots) {
 		if(hits.isEmpty()) {
 			log.info("Sending blank query response");
-			client.emit(queryResponse, "");
+			client.emit(allPeers ? queryPeersResponse : queryResponse, "");
 			return;
 		}
 		String hit = hits.remove(0);
 		synchronized(keyValueMap) {
 			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
+				if(allPeers && fileRoots.containsKey(hit)) {
+					for(String root : fileRoots.get(hit)) {
+						if(!sentRoots.add(root)) continue;
+						List<String> peers = mostRecentFirst(contentMap.get(root));
+						log.info("Sending query response: "+peers+" "+root+" "+hit);
+						client.emit(queryPeersResponse, String.join(",",peers)+" "+root+" "+hit);
+					}
+				} else if(keyValueMap.containsKey(hit)) {
+					List<String> peers = mostRecentFirst(keyValueMap.get(hit));
+					if(allPeers) {
+						log.info("Sending query response: "+peers+" - "+hit);
+						client.emit(queryPeersResponse, String.join(",",peers)+" - "+hit);
+					} else {
+						log.info("Sending query response: "+peers.get(0)+":"+hit);
+						client.emit(queryResponse, peers.get(0)+":"+hit);
+					}
 				}
 			}
 		}
 		Utils.getInstance().setTimeout(()->{
-			transmitHits(hits,client);
+			transmitHits(hits,client,allPeers,sentRoots);
 		}, 100); // transmit 10 hits per second... no real bandwidth control here.
 	}
 	
@@ -165,8 +249,9 @@ public class IndexServer {
 	 * Generate hits and return them to the client. Not a very
 	 * efficient search mechanism, but ok for testing.
 	 * @param query a comma separated list of terms to search for
+	 * @param allPeers whether to give all of the peers that have each file
 	 */
-	private static void queryIndex(String query,Endpoint client) {
+	private static void queryIndex(String query,Endpoint client,boolean allPeers) {
 		String[] terms = query.split(",");
 		Set<String> hits = new HashSet<>();
 		List<String> filenames;
@@ -181,7 +266,7 @@ public class IndexServer {
 				}
 			}
 		}
-		transmitHits(new ArrayList<String>(hits),client);
+		transmitHits(new ArrayList<String>(hits),client,allPeers,new HashSet<String>());
 	}
 	
 	/**
@@ -257,10 +342,23 @@ public class IndexServer {
 	        		String peerport = parts[0]+":"+parts[1];
 	        		indexUpdate(parts[2],peerport);
         		}
+        	}).on(indexContentUpdate, (eventArgs2)->{
+        		String update = (String) eventArgs2[0];
+        		log.info("Received index content update: "+update);
+        		String[] parts=update.split(":",4);
+        		if(parts.length!=4) {
+        			endpoint.emit(indexUpdateError,update);
+        		} else {
+	        		indexContentUpdate(parts[3],parts[2],parts[0]+":"+parts[1]);
+        		}
         	}).on(queryIndex, (eventArgs2)->{
         		String query = (String) eventArgs2[0];
         		log.info("Received query: "+query);
-        		queryIndex(query,endpoint);
+        		queryIndex(query,endpoint,false);
+        	}).on(queryPeers, (eventArgs2)->{
+        		String query = (String) eventArgs2[0];
+        		log.info("Received query for all peers: "+query);
+        		queryIndex(query,endpoint,true);
         	}).on(peerUpdate, (eventArgs2)->{
         		String peerport = (String) eventArgs2[0];
         		log.info("Received peer update: "+peerport);
@@ -43,6 +43,7 @@ public class Server {
     	// parse command line options
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
+        options.addOption("nio",false,"service connections with selector loops rather than a thread each");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -69,6 +70,7 @@ public class Server {
         // the server manager will start an io thread and this will prevent
         // the JVM from terminating
         ServerManager serverManager = new ServerManager(port);
+        if(cmd.hasOption("nio")) serverManager.setSelectorEngine(true);
         serverManager.start();
         // The simple server does not do any application logic, but will
         // (when you have implemented it in the ServerManager class)
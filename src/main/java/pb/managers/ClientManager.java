@@ -88,6 +88,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * Set when shut down, so that a failed connection is not retried.
+	 */
+	private volatile boolean shuttingDown=false;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -102,13 +107,14 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	
 	@Override
 	public void shutdown() {
-		sessionProtocol.stopSession();
+		shuttingDown=true;
+		if(sessionProtocol!=null) sessionProtocol.stopSession();
 	}
 	
 	@Override
 	public void run() {
 		int retries=10;
-		while(retries-- > 0) {
+		while(retries-- > 0 && !shuttingDown) {
 			if(attemptToConnect(host,port)) {
 				// the connection ended in error, so let's just
 				// try to get it back up, transparently to the
@@ -118,6 +124,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 				} catch (InterruptedException e) {
 					continue;
 				} 
+				if(shuttingDown) return;
 			} else {
 				// connection ended cleanly, so we can terminate this manager
 				return;
@@ -137,8 +144,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 						     // if errors occur on the connection
 		log.info("attempting to connect to "+host+":"+port);
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
-			Endpoint endpoint = new Endpoint(socket,this);
+			socket=connectSocket(InetAddress.getByName(host),port);
+			Endpoint endpoint = newEndpoint(socket);
 			endpoint.start();
 
 			try {
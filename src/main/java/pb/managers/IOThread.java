@@ -2,29 +2,41 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.logging.Logger;
 
+import pb.utils.Utils;
+
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link pb.managers.ServerManager} using
  * {@link pb.managers.ServerManager#acceptClient(Socket)}. Note that the
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
- * connection is finished.
+ * connection is finished. When the server manager uses the selector engine
+ * the server socket is opened from a channel, so that accepted sockets have a
+ * channel that the engine can service.
  * 
  * @see {@link pb.managers.ServerManager}
  * @author aaron
  *
  */
-public class IOThread extends Thread {
+public class IOThread implements Runnable {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
 	private ServerSocket serverSocket=null;
 	private int port;
 	private ServerManager serverManager;
 	
+	/**
+	 * The thread accepting connections, created by
+	 * {@link pb.utils.Utils#newThread(Runnable, String)}.
+	 */
+	private final Thread thread;
+	
 	/**
 	 * Emitted when the io thread has started. The argument
 	 * provides the io thread's Internet address in the 
@@ -43,11 +55,24 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		// let's throw these since they are potentially unrecoverable
+		if(serverManager.usesSelectorEngine()) {
+			serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+		} else {
+			serverSocket = new ServerSocket(port);
+		}
 		this.port=port;
 		this.serverManager=serverManager;
-		setName("IOThread");
-		start();
+		thread=Utils.getInstance().newThread(this,"IOThread");
+		thread.start();
+	}
+	
+	/**
+	 * Wait for the io thread to terminate.
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		thread.join();
 	}
 	
 	/**
@@ -60,7 +85,7 @@ public class IOThread extends Thread {
 			} catch (IOException e) {
 				log.warning("exception closing server socket: "+e.getMessage());
 			}
-		interrupt();
+		thread.interrupt();
 	}
 	
 	/**
@@ -75,7 +100,7 @@ public class IOThread extends Thread {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
+		while(!thread.isInterrupted() && !serverSocket.isClosed()){
 			Socket clientSocket;
 			try {
 				clientSocket = serverSocket.accept();
@@ -1,21 +1,86 @@
 package pb.managers;
 
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.IEndpointHandler;
+import pb.managers.endpoint.NioEndpoint;
 import pb.protocols.IProtocolHandler;
 import pb.protocols.Protocol;
-import pb.utils.Eventable;
+import pb.utils.ThreadedEventable;
+import pb.utils.Utils;
 
 /**
- * Manager base class. Methods must be overriden.
+ * Manager base class. Methods must be overriden. Managers that need a
+ * thread override {@link #run()} and are started with {@link #start()}.
  * 
  * @see {@link pb.managers.ServerManager}
  * @see {@link pb.managers.ClientManager}
  * @author aaron
  *
  */
-public class Manager extends Eventable implements IProtocolHandler, IEndpointHandler{
+public class Manager extends ThreadedEventable implements IProtocolHandler, IEndpointHandler{
+	
+	/**
+	 * Whether endpoints of this manager are serviced by the selector engine
+	 * ({@link pb.managers.endpoint.NioEndpoint}) rather than a thread per
+	 * connection ({@link pb.managers.endpoint.Endpoint}). Defaults to true
+	 * when the property {@code pb.engine} is "nio", see
+	 * {@link pb.utils.Utils#getProperty(String, String)}.
+	 */
+	private volatile boolean selectorEngine = "nio".equals(Utils.getInstance().getProperty("pb.engine","thread"));
+	
+	/**
+	 * Choose the engine for endpoints created after this call.
+	 * @param selectorEngine true to use the selector engine, false to use
+	 * a thread per connection
+	 */
+	public void setSelectorEngine(boolean selectorEngine) {
+		this.selectorEngine=selectorEngine;
+	}
+	
+	/**
+	 * 
+	 * @return true if endpoints are serviced by the selector engine
+	 */
+	public boolean usesSelectorEngine() {
+		return selectorEngine;
+	}
+	
+	/**
+	 * Open a connection to a host, in a way that suits the engine in use.
+	 * @param address
+	 * @param port
+	 * @return the connected socket
+	 * @throws IOException if the connection can't be made
+	 */
+	protected Socket connectSocket(InetAddress address,int port) throws IOException {
+		if(selectorEngine) {
+			return SocketChannel.open(new InetSocketAddress(address,port)).socket();
+		} else {
+			return new Socket(address,port);
+		}
+	}
+	
+	/**
+	 * Create an endpoint for a connected socket, using the engine in use.
+	 * Sockets that were not opened from a channel always get a thread.
+	 * @param socket
+	 * @return the endpoint, which needs to be started
+	 * @throws IOException if the socket can't be used by the engine
+	 */
+	protected Endpoint newEndpoint(Socket socket) throws IOException {
+		if(selectorEngine && socket.getChannel()!=null) {
+			return new NioEndpoint(socket.getChannel(),this);
+		} else {
+			return new Endpoint(socket,this);
+		}
+	}
 	
 	/**
 	 * Shut this manager down, closing all connections gracefully where possible.
@@ -107,6 +107,7 @@ public class PeerManager extends Manager {
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
 		ClientManager clientManager = new ClientManager(host,serverPort);
+		clientManager.setSelectorEngine(usesSelectorEngine());
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -139,6 +140,7 @@ public class PeerManager extends Manager {
 	public void run() {
 		// initialize a server manager for other peers to connect to
 		serverManager=new ServerManager(myServerPort);
+		serverManager.setSelectorEngine(usesSelectorEngine());
 		// setup the callbacks for when another peer connects to this peer
 		serverManager.on(ServerManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
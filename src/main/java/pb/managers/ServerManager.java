@@ -268,7 +268,18 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
+		Endpoint endpoint;
+		try {
+			endpoint = newEndpoint(clientSocket);
+		} catch (IOException e) {
+			log.warning("could not use connection from "+clientSocket.getInetAddress()+": "+e.getMessage());
+			try {
+				clientSocket.close();
+			} catch (IOException e1) {
+				// ignore
+			}
+			return;
+		}
 		endpoint.start();
 	}
 	
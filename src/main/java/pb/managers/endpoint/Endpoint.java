@@ -1,36 +1,53 @@
 package pb.managers.endpoint;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
-import pb.utils.Eventable;
+import pb.utils.Eventable.EventSlot;
+import pb.utils.SerialExecutor;
+import pb.utils.ThreadedEventable;
+import pb.utils.Timeout;
 import pb.utils.Utils;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.protocols.event.EventProtocol;
-import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.ICallback;
 import pb.protocols.IRequestReplyProtocol;
-import pb.protocols.keepalive.IKeepAliveProtocolHandler;
-import pb.protocols.keepalive.KeepAliveProtocol;
-import pb.protocols.session.ISessionProtocolHandler;
-import pb.protocols.session.SessionProtocol;
+import pb.protocols.ProtocolRegistry;
+import pb.protocols.session.Capabilities;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. The thread may be a platform
+ * or virtual thread, see {@link pb.utils.Utils#newThread(Runnable, String)}.
+ * It also provides a locked method to send data to the socket which will be
+ * sent to the other endpoint. The endpoint's lock is used rather than
+ * synchronized methods, so that virtual threads do not pin their carrier
+ * thread. Sent messages are queued and a writer thread writes everything that
+ * is pending with a single flush, so sending never waits for the socket, see
+ * {@link pb.managers.endpoint.OutboundQueue}.
+ * Events received from the other endpoint are handed to a pool of threads
+ * shared by all endpoints, in order per endpoint, so slow event callbacks do
+ * not stop the endpoint from reading, see {@link #dispatchEvent(String, Object...)}.
  * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * one instance of each protocol running at a time. The protocols that can be
+ * handled are those in the {@link pb.protocols.ProtocolRegistry}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -38,9 +55,45 @@ import pb.protocols.session.SessionProtocol;
  * @author aaron
  *
  */
-public class Endpoint extends Eventable {
+public class Endpoint extends ThreadedEventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Events emitted locally by the endpoint
+	 */
+	
+	/**
+	 * Emitted when more than {@link pb.managers.endpoint.OutboundQueue#highWatermark}
+	 * bytes are waiting to be written. Messages are still sent, but senders
+	 * that can should wait for {@link #endpointWritable}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String endpointUnwritable="ENDPOINT_UNWRITABLE";
+	
+	/**
+	 * Emitted when less than {@link pb.managers.endpoint.OutboundQueue#lowWatermark}
+	 * bytes are waiting to be written, after {@link #endpointUnwritable}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String endpointWritable="ENDPOINT_WRITABLE";
+	
+	/**
+	 * Whether received events are emitted on the shared event pool, from
+	 * the property {@code pb.eventDispatch}, "pool" (default) or "reader"
+	 * to emit them on the thread that received them.
+	 */
+	private static final boolean dispatchOnPool =
+			!"reader".equals(Utils.getInstance().getProperty("pb.eventDispatch","pool"));
+	
+	/**
+	 * Time to wait for queued messages to be written when closing.
+	 */
+	protected static final int closeTimeout = 5000;
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
@@ -57,24 +110,89 @@ public class Endpoint extends Eventable {
 	private DataInputStream in=null;
 	
 	/**
-	 * The output data stream on the socket.
+	 * The output stream on the socket, only used by the writer thread.
 	 */
-	private DataOutputStream out=null;
+	private OutputStream out=null;
+	
+	/**
+	 * Frames waiting to be written.
+	 */
+	protected final OutboundQueue outbound = new OutboundQueue();
+	
+	/**
+	 * The thread that writes queued frames to the socket.
+	 */
+	private volatile Thread writer=null;
+	
+	/**
+	 * Closes the socket if queued messages are not written in time.
+	 */
+	private volatile Timeout closeTimer=null;
 	
 	/**
 	 * A protocol name to protocol map, of protocols in use.
 	 */
 	private Map<String,Protocol> protocols;
 	
+	/**
+	 * The protocols in use by their id in the {@link pb.protocols.ProtocolRegistry},
+	 * so received messages find their protocol without a map lookup. Guarded
+	 * by {@link #protocols}.
+	 */
+	private Protocol[] protocolsById = new Protocol[0];
+	
 	/**
 	 * Timeout id to use.
 	 */
 	private long timeoutId=1;
 	
 	/**
-	 * Oustanding ids
+	 * Requests waiting for a reply, by timeout id. Any number of requests
+	 * may be in flight at once.
 	 */
-	private Set<Long> outstandingIds;
+	private final PendingRequests outstanding = new PendingRequests(64);
+	
+	/**
+	 * Framing used when writing, only changed while holding the lock.
+	 */
+	protected volatile Framing writeFraming=Framing.UTF;
+	
+	/**
+	 * Framing used when reading, only changed by the reading thread.
+	 */
+	protected volatile Framing readFraming=Framing.UTF;
+	
+	/**
+	 * Framing to read with once the other endpoint's switch marker arrives.
+	 */
+	private volatile Framing pendingReadFraming=null;
+	
+	/**
+	 * Compresses frames when agreed, and decompresses compressed frames.
+	 */
+	protected final FrameCompression compression = new FrameCompression();
+	
+	/**
+	 * What the endpoints agreed on when the session started.
+	 */
+	private volatile Capabilities capabilities=Capabilities.legacy();
+	
+	/**
+	 * Time in ms that a message was last received, of any protocol.
+	 */
+	private volatile long lastReceived=System.currentTimeMillis();
+	
+	/**
+	 * Time in ms that a message was last sent, of any protocol.
+	 */
+	private volatile long lastSent=System.currentTimeMillis();
+	
+	/**
+	 * Received events waiting for their callbacks, or null when they are
+	 * emitted on the reading thread.
+	 */
+	private final SerialExecutor events =
+			dispatchOnPool ? new SerialExecutor(Utils.getInstance().getEventExecutor()) : null;
 	
 	/**
 	 * stopped flag
@@ -90,55 +208,274 @@ public class Endpoint extends Eventable {
 		this.socket = socket;
 		this.manager = manager;
 		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
+	 * Send a Message on the socket for this endpoint. This is locked
 	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * The message is queued and this returns without waiting for it to be
+	 * written.
 	 * @param msg
 	 * @return true if the message was sent, false otherwise
 	 */
-	public synchronized boolean send(Message msg) {
-		if(stopped) return false;
+	public boolean send(Message msg) {
+		boolean unwritable=false;
+		IOException failure=null;
+		lock.lock();
 		try {
+			if(stopped) return false;
 			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			unwritable=write(msg);
+			lastSent=System.currentTimeMillis();
 		} catch (IOException e) {
+			failure=e;
+		} finally {
+			lock.unlock();
+		}
+		return written(unwritable,failure);
+	}
+	
+	/**
+	 * Finish writing a frame, once the endpoint lock has been released:
+	 * listeners may send or take locks of their own, so they are not called
+	 * while holding ours.
+	 * @param unwritable whether the frame filled the queue, see {@link #write(Message)}
+	 * @param failure why the frame could not be written, or null if it was
+	 * @return true if the frame was written
+	 */
+	private boolean written(boolean unwritable, IOException failure) {
+		if(failure!=null) {
 			manager.endpointDisconnectedAbruptly(this);
 			return false;
 		}
+		if(unwritable) localEmit(endpointUnwritable,this);
 		return true;
 	}
 	
+	/**
+	 * Queue the encoded message to be written to the other endpoint. Only
+	 * called while holding the endpoint lock, so frames are queued in order.
+	 * @param msg the message, or null for a switch marker
+	 * @return true if too many bytes are now waiting to be written, the
+	 * caller must emit {@link #endpointUnwritable} once it has released the
+	 * lock, see {@link #written(boolean, IOException)}
+	 * @throws IOException if the message could not be encoded
+	 */
+	protected boolean write(Message msg) throws IOException {
+		ByteBuffer frame = writeFraming.encode(msg);
+		if(msg!=null && capabilities.hasCompression()) frame = compression.compress(frame);
+		if(frame.remaining()>capabilities.getMaxFrameSize()) {
+			throw new IOException("frame is larger than "+getOtherEndpointId()+" accepts: "+frame.remaining());
+		}
+		boolean unwritable = outbound.add(frame);
+		if(unwritable) {
+			log.warning("more than "+OutboundQueue.highWatermark+" bytes waiting to be sent to "+getOtherEndpointId());
+		}
+		framesQueued();
+		return unwritable;
+	}
+	
+	/**
+	 * Frames have been queued. The writer thread is already waiting for them.
+	 */
+	protected void framesQueued() {
+		
+	}
+	
+	/**
+	 * Report bytes that have been written to the socket.
+	 * @param bytes
+	 */
+	protected void framesWritten(long bytes) {
+		if(outbound.written(bytes)) {
+			log.info("sending to "+getOtherEndpointId()+" has caught up");
+			localEmit(endpointWritable,this);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return false if too many bytes are waiting to be written, see
+	 * {@link #endpointUnwritable}
+	 */
+	public boolean isWritable() {
+		return outbound.isWritable();
+	}
+	
+	/**
+	 * 
+	 * @return bytes of compressed frames after compression over before, or 1
+	 * if none have been compressed
+	 */
+	public double getCompressionRatio() {
+		return compression.getRatio();
+	}
+	
+	/**
+	 * 
+	 * @return number of bytes waiting to be written
+	 */
+	public long getQueuedBytes() {
+		return outbound.getQueuedBytes();
+	}
+	
+	/**
+	 * Write queued frames until the queue is closed and empty, then close
+	 * the socket. Everything pending is written before a single flush.
+	 */
+	private void writeFrames() {
+		try {
+			ByteBuffer[] frames;
+			while((frames=outbound.take())!=null) {
+				long bytes=0;
+				for(ByteBuffer frame : frames) {
+					out.write(frame.array(),frame.arrayOffset()+frame.position(),frame.remaining());
+					bytes+=frame.remaining();
+				}
+				out.flush();
+				framesWritten(bytes);
+			}
+		} catch (IOException e) {
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		} catch (InterruptedException e) {
+			// nothing more will be written
+		}
+		closeSocket();
+		Timeout t = closeTimer;
+		if(t!=null) t.cancel();
+	}
+	
+	/**
+	 * Switch to a different framing in both directions. Outgoing messages
+	 * use the new framing after a switch marker (an empty frame) is written
+	 * in the old framing. Incoming messages use the new framing once the
+	 * other endpoint's switch marker has been read. Both endpoints must
+	 * call this, after agreeing on the framing, so that messages already
+	 * in flight are still read correctly.
+	 * @see {@link pb.protocols.session.SessionProtocol}
+	 * @param framing the framing to switch to
+	 * @return true if the marker was sent, false otherwise
+	 */
+	public boolean switchFraming(Framing framing) {
+		boolean unwritable=false;
+		IOException failure=null;
+		lock.lock();
+		try {
+			if(stopped) return false;
+			unwritable=switchFramingLocked(framing);
+		} catch (IOException e) {
+			failure=e;
+		} finally {
+			lock.unlock();
+		}
+		return written(unwritable,failure);
+	}
+	
+	/**
+	 * Write the switch marker and switch the framing. Only called while
+	 * holding the endpoint lock.
+	 * @param framing
+	 * @return true if too many bytes are now waiting to be written
+	 * @throws IOException if the marker could not be written
+	 */
+	private boolean switchFramingLocked(Framing framing) throws IOException {
+		pendingReadFraming=framing;
+		boolean unwritable=write(null);
+		writeFraming=framing;
+		log.info("now writing with "+framing.getFramingName()+" framing to "+getOtherEndpointId());
+		return unwritable;
+	}
+	
+	/**
+	 * Use the capabilities that both endpoints agreed on when the session
+	 * started, switching framing if needed. Both endpoints must call this
+	 * with the same capabilities.
+	 * @see {@link pb.protocols.session.SessionProtocol}
+	 * @param agreed
+	 * @return true if the capabilities are in use, false if the endpoint
+	 * has closed
+	 */
+	public boolean startSession(Capabilities agreed) {
+		boolean unwritable=false;
+		IOException failure=null;
+		lock.lock();
+		try {
+			if(stopped) return false;
+			log.info("agreed on "+agreed+" with "+getOtherEndpointId());
+			// no frame may be sent with the new capabilities in the old framing
+			capabilities=agreed;
+			if(agreed.getFraming()!=writeFraming) unwritable=switchFramingLocked(agreed.getFraming());
+		} catch (IOException e) {
+			failure=e;
+		} finally {
+			lock.unlock();
+		}
+		return written(unwritable,failure);
+	}
+	
+	/**
+	 * 
+	 * @return what the endpoints agreed on when the session started, or
+	 * {@link pb.protocols.session.Capabilities#legacy()} before then
+	 */
+	public Capabilities getCapabilities() {
+		return capabilities;
+	}
+	
+	/**
+	 * Send a request and attach a timeout identifier to it. The returned
+	 * future is completed with the reply that carries the same timeout id,
+	 * on the thread that received it, so dependent actions should not block.
+	 * It completes exceptionally with a {@link java.util.concurrent.TimeoutException}
+	 * if no reply was seen within the given time interval, or with
+	 * {@link pb.managers.endpoint.EndpointClosed} if the endpoint closed first.
+	 * @param msg
+	 * @param timeInterval
+	 * @return the reply to the request
+	 */
+	public CompletableFuture<Message> request(Message msg, int timeInterval) {
+		CompletableFuture<Message> reply = new CompletableFuture<>();
+		long nextId;
+		lock.lock();
+		try {
+			nextId = timeoutId++;
+			msg.setTimeoutId(nextId);
+			outstanding.put(nextId,reply);
+			if(!send(msg)) {
+				outstanding.remove(nextId);
+				reply.completeExceptionally(new EndpointClosed());
+				return reply;
+			}
+		} finally {
+			lock.unlock();
+		}
+		outstanding.setTimeout(nextId,Utils.getInstance().setTimeout(()->{
+			CompletableFuture<Message> timedout = outstanding.remove(nextId);
+			if(timedout!=null) timedout.completeExceptionally(
+					new TimeoutException(msg.getName()+" to "+getOtherEndpointId()));
+		}, timeInterval));
+		return reply;
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
 	 * time interval.
+	 * @see {@link #request(Message, int)}
 	 * @param msg
 	 * @param timeoutCallback
 	 * @param timeInterval
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
-		}
-		msg.setTimeoutId(nextId);
-		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
-		return sent;
+		CompletableFuture<Message> reply = request(msg,timeInterval);
+		if(reply.isCompletedExceptionally()) return false;
+		reply.whenComplete((m,e)->{
+			if(e instanceof TimeoutException) timeoutCallback.callback();
+		});
+		return true;
 	}
 	
 	/**
@@ -149,7 +486,7 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
 		return(send(msg));
@@ -160,7 +497,16 @@ public class Endpoint extends Eventable {
 	 * and the timer thread may end up attempting to do this in the event that
 	 * they detect problems.
 	 */
-	public synchronized void close() {
+	public void close() {
+		lock.lock();
+		try {
+			closeLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void closeLocked() {
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
 		/* 
@@ -186,24 +532,52 @@ public class Endpoint extends Eventable {
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
 		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
+		 * send methods because these methods hold the lock), plus there may
 		 * be pending timer thread callbacks that will want to use this endpoint
 		 * (which wont run since protocol stopped has been set in the protocols).
 		 * The endpoint is at this point just "closing", not closed.
 		 */
 		
-		try {
-			if(out!=null) out.close();
-			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+		// no replies will be received now
+		outstanding.removeAll().forEach((reply)->{
+			reply.completeExceptionally(new EndpointClosed());
+		});
+		
+		if(compression.getUncompressedBytes()>0) {
+			log.info(String.format("compressed frames to %.1f%% of %d bytes sent to %s",
+					100*compression.getRatio(),compression.getUncompressedBytes(),getOtherEndpointId()));
 		}
+		compression.close();
+		
+		closeConnection();
+		manager.endpointClosed(this);
+	}
+	
+	/**
+	 * Close the connection once queued messages, like a session stop reply,
+	 * have been written. If the other endpoint does not read them within
+	 * {@link #closeTimeout} the socket is closed anyway.
+	 */
+	protected void closeConnection() {
+		outbound.close();
+		if(writer==null) {
+			closeSocket();
+		} else if(outbound.getQueuedBytes()>0) {
+			closeTimer = Utils.getInstance().setTimeout(()->{
+				closeSocket();
+			}, closeTimeout);
+		}
+	}
+	
+	/**
+	 * Close the socket, it can be called more than once.
+	 */
+	private void closeSocket() {
 		try {
 			socket.close();
 		} catch (IOException e) {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
-		manager.endpointClosed(this);
 	}
 	
 	/**
@@ -212,55 +586,19 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new BufferedOutputStream(socket.getOutputStream(),64*1024);
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
-		stopped=false; // allow use of the out stream
-		manager.endpointReady(this);
-		log.info("endpoint has started to: "+getOtherEndpointId());
+		writer = Utils.getInstance().newThread(this::writeFrames,getName()+"Writer");
+		writer.start();
+		ready();
 		while(!isInterrupted()) {
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
-				}
+				Framing framing = readFraming;
+				receive(framing.decode(compression.decompress(framing,framing.readFrame(in))));
 			} catch (IOException e) {
 				manager.endpointDisconnectedAbruptly(this);
 				// we can't continue here
@@ -270,12 +608,85 @@ public class Endpoint extends Eventable {
 				// up to the client what to do
 			}
 		}
+		// the writer thread closes the socket
+		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * The connection is open, allow use of the send methods and tell the
+	 * manager.
+	 */
+	protected void ready() {
+		stopped=false; // allow use of the out stream
+		manager.endpointReady(this);
+		log.info("endpoint has started to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Process a single message received from the other endpoint, by passing
+	 * it to the appropriate protocol. The protocol is created (if the manager
+	 * allows it) when this is the first message seen for it.
+	 * @param msg the received message, or null for a switch marker
+	 * @throws InvalidMessage if the message is not valid
+	 */
+	protected void receive(Message msg) throws InvalidMessage {
+		lastReceived=System.currentTimeMillis();
+		if(msg==null) {
+			// the other endpoint has switched framing
+			if(pendingReadFraming==null) throw new InvalidMessage();
+			readFraming=pendingReadFraming;
+			pendingReadFraming=null;
+			log.info("now reading with "+readFraming.getFramingName()+" framing from "+getOtherEndpointId());
+			return;
+		}
+		// cancel any related time out
+		CompletableFuture<Message> reply=null;
+		if(msg.getType()==Message.Type.Reply) {
+			reply=outstanding.remove(msg.getTimeoutId()); // also cancels its timer
+		}
 		try {
-			in.close();
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+			dispatch(msg);
+		} finally {
+			// the protocol has seen the reply before anyone waiting on it
+			if(reply!=null) reply.complete(msg);
+		}
+	}
+	
+	/**
+	 * Pass a received message to its protocol.
+	 * @param msg
+	 */
+	private void dispatch(Message msg) {
+		// find the protocol
+		int protocolId = msg.getProtocolId();
+		Protocol protocol=null;
+		synchronized(protocols) {
+			if(protocolId<protocolsById.length) protocol=protocolsById[protocolId];
+		}
+		if(protocol==null) {
+			protocol=ProtocolRegistry.getInstance().newProtocol(protocolId,this,manager);
+			if(protocol==null || !manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.getName()+" for protocol "+msg.getProtocolName());
+				return;
+			}
+		}
+		log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
 		}
-		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * 
+	 * @return the manager this endpoint reports to
+	 */
+	protected IEndpointHandler getManager() {
+		return manager;
 	}
 	
 	/**
@@ -292,6 +703,12 @@ public class Endpoint extends Eventable {
 				throw new ProtocolAlreadyRunning();
 			} else {
 				protocols.put(protocol.getProtocolName(),protocol);
+				int protocolId = ProtocolRegistry.getInstance().getProtocolId(protocol.getProtocolName());
+				if(protocolId>=0) {
+					if(protocolId>=protocolsById.length) protocolsById=Arrays.copyOf(protocolsById,
+							Math.max(protocolId+1,ProtocolRegistry.getInstance().getProtocolCount()));
+					protocolsById[protocolId]=protocol;
+				}
 				log.info("now handling protocol: "+protocol.getProtocolName());
 			}
 		}
@@ -311,9 +728,73 @@ public class Endpoint extends Eventable {
 			}
 			protocols.get(protocolName).stopProtocol();
 			protocols.remove(protocolName);
+			int protocolId = ProtocolRegistry.getInstance().getProtocolId(protocolName);
+			if(protocolId>=0 && protocolId<protocolsById.length) protocolsById[protocolId]=null;
+		}
+	}
+	
+	/**
+	 * Emit an event that was received from the other endpoint. Callbacks
+	 * for events from this endpoint are run one at a time, in the order
+	 * the events were received, but not necessarily on the same thread.
+	 * @param eventName
+	 * @param args
+	 */
+	public void dispatchEvent(String eventName, Object... args) {
+		if(events==null) {
+			localEmit(eventName,args);
+			return;
+		}
+		try {
+			events.execute(()->{localEmit(eventName,args);});
+		} catch (RejectedExecutionException e) {
+			log.warning("event dropped, the event pool has stopped: "+eventName);
 		}
 	}
 	
+	/**
+	 * Emit an event that was received from the other endpoint, as
+	 * {@link #dispatchEvent(String, Object...)}, to the callbacks of a slot
+	 * that was looked up when its event id was defined.
+	 * @param slot from {@link #slot(String)}
+	 * @param args
+	 */
+	public void dispatchEvent(EventSlot slot, Object... args) {
+		if(events==null) {
+			localEmit(slot,args);
+			return;
+		}
+		try {
+			events.execute(()->{localEmit(slot,args);});
+		} catch (RejectedExecutionException e) {
+			log.warning("event dropped, the event pool has stopped: "+slot.getEventName());
+		}
+	}
+	
+	/**
+	 * 
+	 * @return number of received events waiting for their callbacks
+	 */
+	public int getQueuedEvents() {
+		return events==null ? 0 : events.getQueueDepth();
+	}
+	
+	/**
+	 * 
+	 * @return time in ms that a message was last received
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	/**
+	 * 
+	 * @return time in ms that a message was last sent
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+	
 	/**
 	 * 
 	 * @return the id of the other endpoint
@@ -321,6 +802,14 @@ public class Endpoint extends Eventable {
 	public String getOtherEndpointId() {
 		return socket.getInetAddress().toString()+":"+socket.getPort();
 	}
+	
+	/**
+	 * 
+	 * @return the address of the other endpoint
+	 */
+	public InetAddress getOtherAddress() {
+		return socket.getInetAddress();
+	}
 
 	/**
 	 * 
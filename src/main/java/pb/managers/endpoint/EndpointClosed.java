@@ -0,0 +1,13 @@
+package pb.managers.endpoint;
+
+/**
+ * A request could not be sent, or will never be replied to, because the
+ * endpoint has closed.
+ * @see {@link pb.managers.endpoint.Endpoint#request(pb.protocols.Message, int)}
+ * @author aaron
+ *
+ */
+@SuppressWarnings("serial")
+public class EndpointClosed extends Exception {
+
+}
@@ -0,0 +1,171 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import pb.utils.Utils;
+
+/**
+ * Deflate compression of the frames of one endpoint, for framings with a 4
+ * byte length, once the endpoints have agreed on it, see
+ * {@link pb.protocols.session.Capabilities#hasCompression()}. A compressed
+ * frame has the top bit of its length set, see {@link Framing#compressed}.
+ * <br/>
+ * Each direction is a single deflate stream for the whole connection, flushed
+ * at the end of every frame, so a frame can refer back to anything sent in
+ * the previous 32kB: repeated board paths and message envelopes compress to a
+ * few bytes. The stream starts with a dictionary of text common to all
+ * messages. Only frames of at least {@link #threshold} bytes are compressed.
+ * <br/>
+ * Frames are compressed while holding the endpoint's lock, so in the order
+ * they are queued, and decompressed by the thread that reads them. The
+ * streams' native memory is freed by {@link #close()} when the endpoint
+ * closes.
+ * @author aaron
+ *
+ */
+class FrameCompression {
+
+	/**
+	 * Smallest frame to compress, from the property
+	 * {@code pb.compressionThreshold}, default 1024 bytes.
+	 */
+	static final int threshold = Integer.parseInt(
+			Utils.getInstance().getProperty("pb.compressionThreshold","1024"));
+
+	/**
+	 * Text that most messages contain, which both endpoints start their
+	 * streams with. It can never change once deployed.
+	 */
+	private static final byte[] dictionary = ("{\"eventData\":\"\",\"eventName\":\"\"},"
+			+ "\"events\":[\"timeoutId\":\"type\":\"Request\"\"Reply\""
+			+ "\"protocolName\":\"EventProtocol\"\"name\":\"EventRequest\"\"EventBatchRequest\""
+			+ "BOARD_PATH_UPDATE%\"FILE_CONTENTS\"").getBytes(StandardCharsets.UTF_8);
+
+	private Deflater deflater=null;
+
+	private Inflater inflater=null;
+
+	/**
+	 * Set once the streams have been ended, only changed while holding the
+	 * endpoint's lock and this object's lock.
+	 */
+	private volatile boolean closed=false;
+
+	/**
+	 * Bytes of frames before and after compression, only changed while
+	 * holding the endpoint's lock.
+	 */
+	private volatile long uncompressedBytes=0;
+
+	private volatile long compressedBytes=0;
+
+	/**
+	 * Compress a frame if it is large enough.
+	 * @param frame a frame with a 4 byte length, at position 0
+	 * @return the frame or the compressed frame
+	 */
+	ByteBuffer compress(ByteBuffer frame) {
+		int length = frame.remaining()-4;
+		if(length<threshold || closed) return frame;
+		if(deflater==null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,true);
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(frame.array(),frame.arrayOffset()+4,length);
+		byte[] out = new byte[4+length/2+64];
+		int size=4;
+		while(true) {
+			size+=deflater.deflate(out,size,out.length-size,Deflater.SYNC_FLUSH);
+			if(size<out.length) break;
+			// the output was full, there may be more
+			byte[] larger = new byte[out.length*2];
+			System.arraycopy(out,0,larger,0,size);
+			out=larger;
+		}
+		uncompressedBytes+=length;
+		compressedBytes+=size-4;
+		ByteBuffer compressed = ByteBuffer.wrap(out,0,size);
+		compressed.putInt(0,(size-4)|Framing.compressed);
+		return compressed;
+	}
+
+	/**
+	 * Decompress a frame if it was compressed.
+	 * @param framing the framing the frame was read with
+	 * @param frame a complete frame
+	 * @return the frame or the decompressed frame
+	 * @throws IOException if the frame can not be decompressed, or is too
+	 * large once it is
+	 */
+	synchronized byte[] decompress(Framing framing, byte[] frame) throws IOException {
+		if(!framing.isCompressed(frame)) return frame;
+		if(closed) throw new IOException("compression has ended");
+		if(inflater==null) {
+			inflater = new Inflater(true);
+			inflater.setDictionary(dictionary);
+		}
+		inflater.setInput(frame,4,frame.length-4);
+		byte[] out = new byte[4+(int)Math.min((frame.length-4)*4L,Framing.maxFrameSize)];
+		int size=4;
+		try {
+			while(true) {
+				size+=inflater.inflate(out,size,out.length-size);
+				if(size<out.length && inflater.needsInput()) break;
+				if(inflater.finished() || inflater.needsDictionary()) throw new IOException("frame is not part of the stream");
+				if(size==out.length && size-4>=Framing.maxFrameSize) {
+					// a frame of the largest size is allowed, as long as there is no more of it
+					if(inflater.needsInput() && inflater.inflate(new byte[1])==0) break;
+					throw new IOException("decompressed frame is too large");
+				}
+				if(size==out.length) {
+					byte[] larger = new byte[Math.min(out.length*2,Framing.maxFrameSize+4)];
+					System.arraycopy(out,0,larger,0,size);
+					out=larger;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("frame can not be decompressed: "+e.getMessage());
+		}
+		ByteBuffer.wrap(out).putInt(0,size-4);
+		if(size==out.length) return out;
+		byte[] decompressed = new byte[size];
+		System.arraycopy(out,0,decompressed,0,size);
+		return decompressed;
+	}
+
+	/**
+	 * End both streams, freeing their native memory. Called while holding
+	 * the endpoint's lock, so no frame is being compressed, and this
+	 * object's lock keeps it from ending a frame being decompressed.
+	 */
+	synchronized void close() {
+		closed=true;
+		if(deflater!=null) deflater.end();
+		if(inflater!=null) inflater.end();
+		deflater=null;
+		inflater=null;
+	}
+
+	/**
+	 *
+	 * @return bytes of compressed frames after compression over before, or
+	 * 1 if none have been compressed
+	 */
+	double getRatio() {
+		long before = uncompressedBytes;
+		return before==0 ? 1 : (double)compressedBytes/before;
+	}
+
+	/**
+	 *
+	 * @return bytes of frames that were compressed, before compression
+	 */
+	long getUncompressedBytes() {
+		return uncompressedBytes;
+	}
+}
@@ -0,0 +1,287 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.utils.Utils;
+
+/**
+ * How messages are encoded and delimited on the wire. Every endpoint starts
+ * with {@link #UTF}, which all peers understand, and the endpoints may agree to
+ * switch to {@link #LENGTH} or {@link #BINARY} when the session starts, see
+ * {@link pb.protocols.session.SessionProtocol}. An empty frame is never a
+ * message; it is the marker that tells the reader that the writer has switched
+ * framing, see {@link pb.managers.endpoint.Endpoint#switchFraming(Framing)}.
+ * <br/>
+ * Messages are always encoded to byte buffers for the outbound queue. They
+ * are read from a stream by {@link pb.managers.endpoint.Endpoint} and from
+ * byte buffers by {@link pb.managers.endpoint.NioEndpoint}.
+ * @author aaron
+ *
+ */
+public enum Framing {
+	/**
+	 * The original framing of {@link java.io.DataOutputStream#writeUTF(String)}:
+	 * a 2 byte length and modified UTF-8 JSON, so at most 65535 bytes per message.
+	 */
+	UTF("utf") {
+		@Override
+		public byte[] readFrame(DataInputStream in) throws IOException {
+			int length = in.readUnsignedShort();
+			byte[] frame = new byte[2+length];
+			frame[0]=(byte)(length>>8);
+			frame[1]=(byte)length;
+			in.readFully(frame,2,length);
+			return frame;
+		}
+
+		@Override
+		public ByteBuffer encode(Message msg) throws IOException {
+			String json = toJson(msg);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length()+2);
+			new DataOutputStream(bytes).writeUTF(json);
+			return ByteBuffer.wrap(bytes.toByteArray());
+		}
+
+		@Override
+		public int frameLength(ByteBuffer buffer) {
+			if(buffer.remaining()<2) return -1;
+			return 2+(buffer.getShort(buffer.position()) & 0xffff);
+		}
+
+		@Override
+		public Message decode(byte[] frame) throws IOException, InvalidMessage {
+			return fromJson(new DataInputStream(new ByteArrayInputStream(frame)).readUTF());
+		}
+	},
+
+	/**
+	 * A 4 byte length followed by standard UTF-8 JSON, messages are limited
+	 * only by {@link Framing#maxFrameSize}.
+	 */
+	LENGTH("length") {
+		@Override
+		public byte[] readFrame(DataInputStream in) throws IOException {
+			return readLengthPrefixed(in);
+		}
+
+		@Override
+		public ByteBuffer encode(Message msg) throws IOException {
+			byte[] bytes = toJson(msg).getBytes(StandardCharsets.UTF_8);
+			checkSize(bytes.length);
+			ByteBuffer buffer = ByteBuffer.allocate(4+bytes.length);
+			buffer.putInt(bytes.length).put(bytes).flip();
+			return buffer;
+		}
+
+		@Override
+		public int frameLength(ByteBuffer buffer) throws IOException {
+			return lengthPrefixed(buffer);
+		}
+
+		@Override
+		public Message decode(byte[] frame) throws IOException, InvalidMessage {
+			return fromJson(new String(frame,4,frame.length-4,StandardCharsets.UTF_8));
+		}
+	},
+
+	/**
+	 * A 4 byte length followed by the message in binary, see
+	 * {@link pb.protocols.BinaryCodec}, messages are limited only by
+	 * {@link Framing#maxFrameSize}.
+	 */
+	BINARY("binary") {
+		@Override
+		public byte[] readFrame(DataInputStream in) throws IOException {
+			return readLengthPrefixed(in);
+		}
+
+		@Override
+		public ByteBuffer encode(Message msg) throws IOException {
+			if(msg==null) {
+				ByteBuffer marker = ByteBuffer.allocate(4);
+				marker.putInt(0).flip();
+				return marker;
+			}
+			ByteBuffer buffer = msg.toBinary(4);
+			int length = buffer.remaining()-4;
+			checkSize(length);
+			buffer.putInt(0,length);
+			return buffer;
+		}
+
+		@Override
+		public int frameLength(ByteBuffer buffer) throws IOException {
+			return lengthPrefixed(buffer);
+		}
+
+		@Override
+		public Message decode(byte[] frame) throws IOException, InvalidMessage {
+			if(frame.length==4) return null;
+			return Message.toMessage(frame,4,frame.length-4);
+		}
+	};
+
+	/**
+	 * Largest message that {@link #UTF} can carry, its length being 2 bytes.
+	 */
+	public static final int utfMaxFrameSize = 65535;
+
+	/**
+	 * Largest message allowed with {@link #LENGTH}, set with the property
+	 * {@code pb.maxFrameSize}, default 16MB. It protects the reader from
+	 * allocating a buffer for a corrupt or malicious length.
+	 */
+	public static final int maxFrameSize = Integer.parseInt(
+			Utils.getInstance().getProperty("pb.maxFrameSize",String.valueOf(16*1024*1024)));
+
+	/**
+	 * Set in the length of a frame with a 4 byte length when the rest of the
+	 * frame is compressed, see {@link pb.managers.endpoint.FrameCompression}.
+	 */
+	static final int compressed = 0x80000000;
+	
+	/**
+	 * The framings to offer, or accept, when a session starts, most preferred
+	 * first. Set with the property {@code pb.framing}, a comma separated
+	 * list, default "length"; use "utf" to keep the original framing, or e.g.
+	 * "binary,length" to prefer binary but still agree on length framing
+	 * with peers that do not support binary.
+	 */
+	public static final List<Framing> supported = supportedFramings();
+	
+	/**
+	 * The most preferred of the {@link #supported} framings.
+	 */
+	public static final Framing preferred = supported.get(0);
+
+	/**
+	 * Name used when negotiating framing.
+	 */
+	private final String framingName;
+
+	private Framing(String framingName) {
+		this.framingName=framingName;
+	}
+
+	/**
+	 * Blocking read of the next frame from a stream.
+	 * @param in
+	 * @return the complete frame, including its header, to be decoded with
+	 * {@link #decode(byte[])}
+	 * @throws IOException
+	 */
+	public abstract byte[] readFrame(DataInputStream in) throws IOException;
+
+	/**
+	 * Encode a message as a complete frame.
+	 * @param msg the message, or null for the switch marker
+	 * @return buffer ready to be written
+	 * @throws IOException if the message is too large
+	 */
+	public abstract ByteBuffer encode(Message msg) throws IOException;
+
+	/**
+	 * Look at, without consuming, the frame at the buffer's position.
+	 * @param buffer received bytes, ready for reading
+	 * @return length of the frame including its header, or -1 if not
+	 * enough of the header has been received yet
+	 * @throws IOException if the frame is too large
+	 */
+	public abstract int frameLength(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Decode a complete frame, as given by {@link #frameLength(ByteBuffer)}.
+	 * @param frame
+	 * @return the message, or null for the switch marker
+	 * @throws IOException
+	 * @throws InvalidMessage if the frame is not a valid message
+	 */
+	public abstract Message decode(byte[] frame) throws IOException, InvalidMessage;
+
+	/**
+	 * 
+	 * @return true if frames have a 4 byte length, which is needed for
+	 * compression
+	 */
+	public boolean isLengthPrefixed() {
+		return this!=UTF;
+	}
+	
+	/**
+	 * 
+	 * @param frame a complete frame
+	 * @return true if the frame is compressed and must be decompressed
+	 * before it is decoded
+	 */
+	boolean isCompressed(byte[] frame) {
+		return isLengthPrefixed() && (frame[0] & 0x80)!=0;
+	}
+	
+	/**
+	 * @return the name used when negotiating framing
+	 */
+	public String getFramingName() {
+		return framingName;
+	}
+
+	/**
+	 * @param framingName
+	 * @return the framing with the given name or null if there is none
+	 */
+	public static Framing forName(String framingName) {
+		for(Framing framing : values()) {
+			if(framing.framingName.equals(framingName)) return framing;
+		}
+		return null;
+	}
+
+	private static List<Framing> supportedFramings() {
+		List<Framing> framings = new ArrayList<>();
+		for(String framingName : Utils.getInstance().getProperty("pb.framing","length").split(",")) {
+			Framing framing = forName(framingName.trim());
+			if(framing==null) throw new IllegalArgumentException("unknown framing: "+framingName);
+			framings.add(framing);
+		}
+		return Collections.unmodifiableList(framings);
+	}
+
+	private static String toJson(Message msg) {
+		return msg==null ? "" : msg.toJsonString();
+	}
+
+	private static Message fromJson(String json) throws InvalidMessage {
+		return json.isEmpty() ? null : Message.toMessage(json);
+	}
+
+	private static int lengthPrefixed(ByteBuffer buffer) throws IOException {
+		if(buffer.remaining()<4) return -1;
+		int length = buffer.getInt(buffer.position()) & ~compressed;
+		checkSize(length);
+		return 4+length;
+	}
+
+	private static byte[] readLengthPrefixed(DataInputStream in) throws IOException {
+		int header = in.readInt();
+		int length = header & ~compressed;
+		checkSize(length);
+		byte[] frame = new byte[4+length];
+		ByteBuffer.wrap(frame).putInt(header);
+		in.readFully(frame,4,length);
+		return frame;
+	}
+
+	private static void checkSize(int length) throws IOException {
+		if(length<0 || length>maxFrameSize) throw new IOException("frame size not allowed: "+length);
+	}
+}
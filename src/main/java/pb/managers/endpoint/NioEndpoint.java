@@ -0,0 +1,276 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import pb.protocols.InvalidMessage;
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * An endpoint that is serviced by a selector loop from the
+ * {@link pb.managers.endpoint.SelectorPool}, rather than by its own thread.
+ * The socket channel is non-blocking; received bytes are accumulated until a
+ * complete message is available and the message is then processed exactly
+ * as {@link pb.managers.endpoint.Endpoint} would, on the selector loop thread.
+ * Sent messages are queued and written by the selector loop, with gathering
+ * writes, when the socket can accept them. The wire format is the same as the thread-per-connection
+ * endpoint, so either kind of endpoint can talk to the other.
+ * <br/>
+ * Protocol and manager callbacks run on the selector loop thread, which is
+ * shared with other endpoints, so they should not block. Received events
+ * are emitted on the event pool unless {@code pb.eventDispatch} is "reader".
+ *
+ * @see {@link pb.managers.endpoint.SelectorPool}
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @author aaron
+ *
+ */
+public class NioEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(NioEndpoint.class.getName());
+
+	/**
+	 * Initial size of the read buffer, it grows as needed to hold the largest
+	 * message received.
+	 */
+	private static final int initialBufferSize = 8*1024;
+
+	/**
+	 * The channel this endpoint is wrapped around.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * Selection key for the channel, set once registered.
+	 */
+	private volatile SelectionKey key;
+
+	/**
+	 * The loop servicing this endpoint.
+	 */
+	private volatile SelectorPool.SelectorLoop loop;
+
+	/**
+	 * Bytes received but not yet processed. Only used by the loop thread.
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(initialBufferSize);
+
+	/**
+	 * Frames taken from the outbound queue that are not yet completely
+	 * written. Only used by the loop thread.
+	 */
+	private ByteBuffer[] writing = new ByteBuffer[0];
+
+	/**
+	 * Set once the endpoint is closing, the channel is closed when the
+	 * write queue is empty.
+	 */
+	private volatile boolean closing=false;
+
+	/**
+	 * Closes the channel if queued messages are not written in time.
+	 */
+	private volatile Timeout closeTimer=null;
+
+	/**
+	 * Released when the endpoint will no longer process messages.
+	 */
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	/**
+	 * Initialise the endpoint with a connected socket channel and a manager.
+	 * @param channel
+	 * @param manager
+	 * @throws IOException if the channel can't be made non-blocking
+	 */
+	public NioEndpoint(SocketChannel channel, IEndpointHandler manager) throws IOException {
+		super(channel.socket(),manager);
+		this.channel = channel;
+		channel.configureBlocking(false);
+		setName("NioEndpoint");
+	}
+
+	/**
+	 * Rather than starting a thread, hand the endpoint to a selector loop.
+	 */
+	@Override
+	public void start() {
+		SelectorPool.getInstance().register(this);
+	}
+
+	/**
+	 * Ask the selector loop to write the queued frames.
+	 */
+	@Override
+	protected void framesQueued() {
+		loop.wantWrite(this);
+	}
+
+	/**
+	 * Messages that were sent before closing, like a session stop reply,
+	 * are still written by the loop before the channel is closed. If the
+	 * other endpoint does not read them within {@link #closeTimeout} the
+	 * channel is closed anyway.
+	 */
+	@Override
+	protected void closeConnection() {
+		closing=true;
+		outbound.close();
+		if(outbound.getQueuedBytes()==0) {
+			finishClose();
+		} else {
+			loop.wantWrite(this);
+			closeTimer = Utils.getInstance().setTimeout(()->{
+				finishClose();
+			}, closeTimeout);
+		}
+	}
+	
+	/**
+	 * Close the channel, it can be called more than once.
+	 */
+	private void finishClose() {
+		Timeout t = closeTimer;
+		if(t!=null) t.cancel();
+		SelectionKey k = key;
+		if(k!=null) k.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("channel did not close properly: "+e.getMessage());
+		}
+		outbound.clear();
+		if(terminated.getCount()>0) {
+			terminated.countDown();
+			log.info("endpoint has terminated to: "+getOtherEndpointId());
+		}
+	}
+
+	/**
+	 * There is no thread to join, wait for the endpoint to terminate.
+	 */
+	@Override
+	public void join() throws InterruptedException {
+		terminated.await();
+	}
+
+	void setLoop(SelectorPool.SelectorLoop loop) {
+		this.loop = loop;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Called by the loop once the channel has been registered.
+	 * @param key
+	 */
+	void registered(SelectionKey key) {
+		this.key = key;
+		ready();
+	}
+
+	/**
+	 * Called by the loop when the channel could not be used.
+	 */
+	void disconnected() {
+		getManager().endpointDisconnectedAbruptly(this);
+	}
+
+	/**
+	 * Called by the loop when data can be read. Process every complete
+	 * message that has been received.
+	 */
+	void readable() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			read = -1;
+		}
+		if(read==-1) {
+			if(closing) finishClose();
+			else disconnected();
+			return;
+		}
+		readBuffer.flip();
+		int length=-1;
+		try {
+			while(!closing) {
+				// the framing may change while processing a message
+				length = readFraming.frameLength(readBuffer);
+				if(length==-1 || readBuffer.remaining()<length) break;
+				byte[] frame = new byte[length];
+				readBuffer.get(frame);
+				try {
+					Framing framing = readFraming;
+					receive(framing.decode(compression.decompress(framing,frame)));
+				} catch (IOException | InvalidMessage e) {
+					getManager().endpointSentInvalidMessage(this);
+					// up to the client what to do
+				}
+			}
+		} catch (IOException e) {
+			// the frame is too large to accept
+			disconnected();
+			return;
+		} catch (RuntimeException e) {
+			// a callback failed part way through the buffer, the session can't be trusted
+			log.severe("processing a message from "+getOtherEndpointId()+" failed: "+e);
+			disconnected();
+			return;
+		} finally {
+			// ready for the next read, whatever happened to the frames read so far
+			readBuffer.compact();
+		}
+		if(length>readBuffer.capacity()) {
+			// a message larger than the buffer is arriving
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(length,readBuffer.capacity()*2));
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Called by the loop when data can be written. Write as much of the
+	 * queue as the socket will take, with a gathering write of everything
+	 * that is pending.
+	 */
+	void writable() {
+		try {
+			while(true) {
+				if(!remaining(writing)) {
+					writing = outbound.poll();
+					if(writing.length==0) break;
+				}
+				framesWritten(channel.write(writing));
+				if(remaining(writing)) return; // socket is full, wait for the next write
+			}
+		} catch (IOException e) {
+			if(closing) finishClose();
+			else disconnected();
+			return;
+		}
+		if(closing) {
+			finishClose();
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		// a message may have been queued since we last looked
+		if(!outbound.isEmpty()) loop.wantWrite(this);
+	}
+
+	private static boolean remaining(ByteBuffer[] buffers) {
+		return buffers.length>0 && buffers[buffers.length-1].hasRemaining();
+	}
+}
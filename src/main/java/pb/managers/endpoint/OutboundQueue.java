@@ -0,0 +1,194 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.utils.Utils;
+
+/**
+ * Encoded frames waiting to be written to the socket of an endpoint. Senders
+ * add frames and return immediately; a single writer takes everything that is
+ * pending at once, so that it can be written with a single flush (or a single
+ * gathering write for a channel).
+ * <br/>
+ * The queue keeps a count of bytes not yet written. When it rises above the
+ * high watermark the queue becomes unwritable, and it becomes writable again
+ * when it falls below the low watermark. Frames are still accepted when the
+ * queue is unwritable; it is up to the sender to slow down. The watermarks are
+ * set with the properties {@code pb.highWatermark} (default 1MB) and
+ * {@code pb.lowWatermark} (default 256kB).
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#isWritable()}
+ * @author aaron
+ *
+ */
+public class OutboundQueue {
+
+	/**
+	 * Bytes queued above which the queue is unwritable.
+	 */
+	public static final long highWatermark = Long.parseLong(
+			Utils.getInstance().getProperty("pb.highWatermark",String.valueOf(1024*1024)));
+
+	/**
+	 * Bytes queued below which the queue is writable again.
+	 */
+	public static final long lowWatermark = Long.parseLong(
+			Utils.getInstance().getProperty("pb.lowWatermark",String.valueOf(256*1024)));
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+
+	/**
+	 * Bytes added but not yet reported as written.
+	 */
+	private long queuedBytes=0;
+
+	private boolean writable=true;
+
+	private boolean closed=false;
+
+	/**
+	 * Add a frame to be written.
+	 * @param frame
+	 * @return true if adding the frame made the queue unwritable
+	 */
+	public boolean add(ByteBuffer frame) {
+		lock.lock();
+		try {
+			frames.add(frame);
+			queuedBytes+=frame.remaining();
+			notEmpty.signal();
+			if(writable && queuedBytes>highWatermark) {
+				writable=false;
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for frames and take all that are pending.
+	 * @return the frames, or null if the queue is closed and there is
+	 * nothing left to write
+	 * @throws InterruptedException
+	 */
+	public ByteBuffer[] take() throws InterruptedException {
+		lock.lock();
+		try {
+			while(frames.isEmpty()) {
+				if(closed) return null;
+				notEmpty.await();
+			}
+			return poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take all frames that are pending, without waiting.
+	 * @return the frames, possibly none
+	 */
+	public ByteBuffer[] poll() {
+		lock.lock();
+		try {
+			ByteBuffer[] pending = frames.toArray(new ByteBuffer[frames.size()]);
+			frames.clear();
+			return pending;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Report bytes that have been written.
+	 * @param bytes
+	 * @return true if this made the queue writable again
+	 */
+	public boolean written(long bytes) {
+		lock.lock();
+		try {
+			queuedBytes-=bytes;
+			if(!writable && queuedBytes<lowWatermark) {
+				writable=true;
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * No more frames will be added. {@link #take()} returns null once the
+	 * pending frames have been taken.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed=true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop any pending frames.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			frames.clear();
+			queuedBytes=0;
+			writable=true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if nothing is waiting to be taken
+	 */
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return frames.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return false while above the high watermark, until below the low
+	 * watermark
+	 */
+	public boolean isWritable() {
+		lock.lock();
+		try {
+			return writable;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return bytes added but not yet written
+	 */
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.protocols.Message;
+import pb.utils.Timeout;
+
+/**
+ * Requests sent by an endpoint that are waiting for a reply. Timeout ids are
+ * handed out in sequence, so the requests in flight are a window of ids and
+ * are kept in a ring of slots indexed by id, without boxing the ids. The ring
+ * doubles in size if a new id would land on a slot that is still in use.
+ * <br/>
+ * Each entry holds the request's timer, so that a reply cancels it directly
+ * and it is removed from the timer rather than firing later to find nothing.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#request(Message, int)}
+ * @author aaron
+ *
+ */
+class PendingRequests {
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private long[] ids;
+
+	private CompletableFuture<Message>[] replies;
+
+	private Timeout[] timeouts;
+
+	private int mask;
+
+	private int size=0;
+
+	PendingRequests(int initialCapacity) {
+		allocate(Integer.highestOneBit(Math.max(2,initialCapacity)-1)<<1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void allocate(int capacity) {
+		ids = new long[capacity];
+		replies = (CompletableFuture<Message>[]) new CompletableFuture<?>[capacity];
+		timeouts = new Timeout[capacity];
+		mask = capacity-1;
+	}
+
+	/**
+	 * Add a request that is waiting for a reply.
+	 * @param id the timeout id of the request
+	 * @param reply completed when the reply arrives
+	 */
+	void put(long id, CompletableFuture<Message> reply) {
+		lock.lock();
+		try {
+			while(replies[(int)(id & mask)]!=null) grow();
+			int slot = (int)(id & mask);
+			ids[slot]=id;
+			replies[slot]=reply;
+			size++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Attach the timer of a request. If the request has already been
+	 * removed the timer is cancelled.
+	 * @param id
+	 * @param timeout
+	 */
+	void setTimeout(long id, Timeout timeout) {
+		lock.lock();
+		try {
+			int slot = (int)(id & mask);
+			if(replies[slot]!=null && ids[slot]==id) {
+				timeouts[slot]=timeout;
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		timeout.cancel();
+	}
+
+	/**
+	 * Remove a request, cancelling its timer.
+	 * @param id
+	 * @return the request's reply, or null if there is no such request
+	 */
+	CompletableFuture<Message> remove(long id) {
+		CompletableFuture<Message> reply;
+		Timeout timeout;
+		lock.lock();
+		try {
+			int slot = (int)(id & mask);
+			reply = replies[slot];
+			if(reply==null || ids[slot]!=id) return null;
+			timeout = timeouts[slot];
+			replies[slot]=null;
+			timeouts[slot]=null;
+			size--;
+		} finally {
+			lock.unlock();
+		}
+		if(timeout!=null) timeout.cancel();
+		return reply;
+	}
+
+	/**
+	 * Remove every request, cancelling their timers.
+	 * @return the replies of the requests
+	 */
+	List<CompletableFuture<Message>> removeAll() {
+		List<CompletableFuture<Message>> removed = new ArrayList<>();
+		List<Timeout> cancelled = new ArrayList<>();
+		lock.lock();
+		try {
+			for(int slot=0;slot<replies.length;slot++) {
+				if(replies[slot]==null) continue;
+				removed.add(replies[slot]);
+				if(timeouts[slot]!=null) cancelled.add(timeouts[slot]);
+				replies[slot]=null;
+				timeouts[slot]=null;
+			}
+			size=0;
+		} finally {
+			lock.unlock();
+		}
+		cancelled.forEach((timeout)->{timeout.cancel();});
+		return removed;
+	}
+
+	/**
+	 * @return number of requests waiting for a reply
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void grow() {
+		long[] oldIds = ids;
+		CompletableFuture<Message>[] oldReplies = replies;
+		Timeout[] oldTimeouts = timeouts;
+		int capacity = oldIds.length*2;
+		while(true) {
+			allocate(capacity);
+			if(rehash(oldIds,oldReplies,oldTimeouts)) return;
+			capacity*=2; // ids that are far apart still collide, try larger
+		}
+	}
+
+	private boolean rehash(long[] oldIds, CompletableFuture<Message>[] oldReplies, Timeout[] oldTimeouts) {
+		for(int i=0;i<oldIds.length;i++) {
+			if(oldReplies[i]==null) continue;
+			int slot = (int)(oldIds[i] & mask);
+			if(replies[slot]!=null) return false;
+			ids[slot]=oldIds[i];
+			replies[slot]=oldReplies[i];
+			timeouts[slot]=oldTimeouts[i];
+		}
+		return true;
+	}
+}
@@ -0,0 +1,166 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * A small, fixed size pool of selector loops that service the sockets of
+ * {@link pb.managers.endpoint.NioEndpoint}s. Each loop is a single thread
+ * that reads and writes any number of non-blocking socket channels, so the
+ * number of threads no longer grows with the number of connections. Endpoints
+ * are assigned to loops round robin. It must always be accessed statically
+ * as SelectorPool.getInstance()...
+ * <br/>
+ * The number of loops defaults to the number of available processors and can
+ * be set with the property {@code pb.selectors}, see
+ * {@link pb.utils.Utils#getProperty(String, String)}.
+ *
+ * @see {@link pb.managers.endpoint.NioEndpoint}
+ * @author aaron
+ *
+ */
+public class SelectorPool {
+	private static Logger log = Logger.getLogger(SelectorPool.class.getName());
+
+	private static SelectorPool selectorPool;
+
+	/**
+	 * The selector loops in this pool.
+	 */
+	private final SelectorLoop[] loops;
+
+	/**
+	 * Used to assign endpoints to loops, round robin.
+	 */
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Initialise the pool with a number of selector loops.
+	 * @param numLoops the number of selector loops (threads) to use
+	 * @throws IOException if a selector could not be opened
+	 */
+	public SelectorPool(int numLoops) throws IOException {
+		loops = new SelectorLoop[numLoops];
+		for(int i=0;i<numLoops;i++) {
+			loops[i] = new SelectorLoop(i);
+			loops[i].start();
+		}
+	}
+
+	public static synchronized SelectorPool getInstance() {
+		if(selectorPool==null) {
+			int numLoops = Integer.parseInt(Utils.getInstance().getProperty("pb.selectors",
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			try {
+				selectorPool = new SelectorPool(Math.max(1,numLoops));
+			} catch (IOException e) {
+				// without a selector there is no way to use this engine at all
+				throw new IllegalStateException("could not open selector: "+e.getMessage());
+			}
+		}
+		return selectorPool;
+	}
+
+	/**
+	 * Hand an endpoint to one of the selector loops. The endpoint becomes
+	 * ready once the loop has registered its channel.
+	 * @param endpoint
+	 */
+	void register(NioEndpoint endpoint) {
+		loops[Math.floorMod(nextLoop.getAndIncrement(),loops.length)].register(endpoint);
+	}
+
+	/**
+	 * A single thread that selects over the channels of its endpoints.
+	 * Registration and interest changes requested by other threads are
+	 * queued and applied by the loop itself, since selection keys should
+	 * only be modified by the selecting thread.
+	 */
+	static class SelectorLoop extends Thread {
+		private final Selector selector;
+
+		/**
+		 * Endpoints waiting to be registered with the selector.
+		 */
+		private final Queue<NioEndpoint> registrations = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Endpoints that have data waiting to be written.
+		 */
+		private final Queue<NioEndpoint> writers = new ConcurrentLinkedQueue<>();
+
+		SelectorLoop(int id) throws IOException {
+			selector = Selector.open();
+			setName("SelectorLoop-"+id);
+			setDaemon(true); // endpoints and managers decide when the jvm can quit
+		}
+
+		void register(NioEndpoint endpoint) {
+			endpoint.setLoop(this); // before it can become ready and send
+			registrations.add(endpoint);
+			selector.wakeup();
+		}
+
+		/**
+		 * Ask the loop to start writing for the endpoint.
+		 * @param endpoint
+		 */
+		void wantWrite(NioEndpoint endpoint) {
+			writers.add(endpoint);
+			// also needed when called by this loop, so the next select does not block
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			log.info("selector loop started");
+			while(true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					log.severe("selector failed: "+e.getMessage());
+					break;
+				}
+				NioEndpoint endpoint;
+				while((endpoint=registrations.poll())!=null) {
+					try {
+						endpoint.registered(endpoint.getChannel().register(selector,
+								SelectionKey.OP_READ,endpoint));
+					} catch (ClosedChannelException e) {
+						endpoint.disconnected();
+					}
+				}
+				while((endpoint=writers.poll())!=null) {
+					SelectionKey key = endpoint.getKey();
+					if(key!=null && key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					endpoint = (NioEndpoint) key.attachment();
+					try {
+						if(key.isValid() && key.isReadable()) endpoint.readable();
+						if(key.isValid() && key.isWritable()) endpoint.writable();
+					} catch (CancelledKeyException e) {
+						// endpoint was closed while we were servicing it
+					} catch (RuntimeException e) {
+						// a callback failed, don't let it take the other endpoints down
+						log.severe("endpoint "+endpoint.getOtherEndpointId()+" failed: "+e);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package pb.protocols;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * Compact binary encoding of messages, used by the binary framing, see
+ * {@link pb.managers.endpoint.Framing#BINARY}. It holds the same values as
+ * the JSON text and decodes to the same {@link pb.protocols.Document}, so
+ * messages do not know which encoding was used.
+ * <br/>
+ * Each value is a tag byte followed by its contents. Lengths, counts and
+ * names are unsigned varints and integers are zigzag varints. Keys and short
+ * strings that are in {@link #names}, like the envelope keys, the message
+ * type and the protocol and message names, are sent as their index in the
+ * table rather than as text. The table is shared by all peers, so it may only
+ * ever be appended to.
+ * @see {@link pb.protocols.MessageCodec}
+ * @author aaron
+ *
+ */
+public class BinaryCodec {
+
+	private static final byte NULL=0;
+	private static final byte FALSE=1;
+	private static final byte TRUE=2;
+	private static final byte LONG=3;
+	private static final byte DOUBLE=4;
+	private static final byte STRING=5;
+	private static final byte NAME=6;
+	private static final byte OBJECT=7;
+	private static final byte ARRAY=8;
+
+	/**
+	 * Strings sent as their index, in the order of their index.
+	 */
+	private static final String[] names = {
+		"name", "protocolName", "type", "timeoutId",
+		Message.Type.Request.toString(), Message.Type.Reply.toString(),
+		SessionProtocol.protocolName, KeepAliveProtocol.protocolName, EventProtocol.protocolName,
+		SessionStartRequest.name, SessionStartReply.name, SessionStopRequest.name, SessionStopReply.name,
+		KeepAliveRequest.name, KeepAliveReply.name,
+		EventRequest.name, EventReply.name, EventBatchRequest.name,
+		"eventName", "eventData", "events", "noReply", "framing",
+		"eventId"
+	};
+
+	/**
+	 * Longest string in {@link #names}, longer strings are not looked up.
+	 */
+	private static final int longestName = 32;
+
+	private static final Map<String,Integer> nameIds = new HashMap<>();
+
+	static {
+		for(int i=0;i<names.length;i++) nameIds.put(names[i],i);
+	}
+
+	/**
+	 * Deepest nesting of objects and arrays that will be decoded.
+	 */
+	private static final int maxDepth = 64;
+
+	private byte[] bytes;
+
+	private int pos;
+
+	private int end;
+
+	private BinaryCodec(byte[] bytes, int pos, int end) {
+		this.bytes=bytes;
+		this.pos=pos;
+		this.end=end;
+	}
+
+	/**
+	 * Encode a message's document, leaving room for a frame header.
+	 * @param doc
+	 * @param headerBytes number of bytes to leave free at the start
+	 * @return buffer at position 0 with the header bytes followed by the message
+	 */
+	public static ByteBuffer encode(Document doc, int headerBytes) {
+		BinaryCodec codec = new BinaryCodec(new byte[128],headerBytes,0);
+		codec.writeObject(doc.obj);
+		return ByteBuffer.wrap(codec.bytes,0,codec.pos);
+	}
+
+	/**
+	 * Decode a message's document.
+	 * @param bytes
+	 * @param offset where the message starts
+	 * @param length of the message
+	 * @return the document of the message
+	 * @throws InvalidMessage if the bytes are not an encoded object
+	 */
+	public static Document decode(byte[] bytes, int offset, int length) throws InvalidMessage {
+		BinaryCodec codec = new BinaryCodec(bytes,offset,offset+length);
+		if(codec.readByte()!=OBJECT) throw new InvalidMessage();
+		JSONObject obj = codec.readObject(0);
+		if(codec.pos!=codec.end) throw new InvalidMessage();
+		return new Document(obj);
+	}
+
+	/*
+	 * Encoding
+	 */
+
+	private void writeValue(Object value) {
+		if(value==null) {
+			writeByte(NULL);
+		} else if(value instanceof String) {
+			writeString((String) value);
+		} else if(value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			long l = ((Number) value).longValue();
+			writeByte(LONG);
+			writeVarint((l<<1)^(l>>63));
+		} else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if(Double.isNaN(d) || Double.isInfinite(d)) {
+				// as in JSON
+				writeByte(NULL);
+				return;
+			}
+			writeByte(DOUBLE);
+			ensure(8);
+			long l = Double.doubleToLongBits(d);
+			for(int shift=56;shift>=0;shift-=8) bytes[pos++]=(byte)(l>>>shift);
+		} else if(value instanceof Boolean) {
+			writeByte(((Boolean) value) ? TRUE : FALSE);
+		} else if(value instanceof Map) {
+			writeObject((Map<?,?>) value);
+		} else if(value instanceof List) {
+			List<?> list = (List<?>) value;
+			writeByte(ARRAY);
+			writeVarint(list.size());
+			for(int i=0;i<list.size();i++) writeValue(list.get(i));
+		} else if(value instanceof Document) {
+			writeObject(((Document) value).obj);
+		} else {
+			writeString(value.toString());
+		}
+	}
+
+	private void writeObject(Map<?,?> obj) {
+		writeByte(OBJECT);
+		writeVarint(obj.size());
+		for(Map.Entry<?,?> entry : obj.entrySet()) {
+			writeString(String.valueOf(entry.getKey()));
+			writeValue(entry.getValue());
+		}
+	}
+
+	private void writeString(String s) {
+		if(s.length()<=longestName) {
+			Integer id = nameIds.get(s);
+			if(id!=null) {
+				writeByte(NAME);
+				writeVarint(id);
+				return;
+			}
+		}
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		writeByte(STRING);
+		writeVarint(utf8.length);
+		ensure(utf8.length);
+		System.arraycopy(utf8,0,bytes,pos,utf8.length);
+		pos+=utf8.length;
+	}
+
+	private void writeVarint(long v) {
+		ensure(10);
+		while((v & ~0x7fL)!=0) {
+			bytes[pos++]=(byte)((v & 0x7f)|0x80);
+			v>>>=7;
+		}
+		bytes[pos++]=(byte)v;
+	}
+
+	private void writeByte(byte b) {
+		ensure(1);
+		bytes[pos++]=b;
+	}
+
+	private void ensure(int more) {
+		if(pos+more>bytes.length) {
+			byte[] larger = new byte[Math.max(pos+more,bytes.length*2)];
+			System.arraycopy(bytes,0,larger,0,pos);
+			bytes=larger;
+		}
+	}
+
+	/*
+	 * Decoding
+	 */
+
+	private Object readValue(int depth) throws InvalidMessage {
+		byte tag = readByte();
+		switch(tag) {
+		case NULL: return null;
+		case FALSE: return Boolean.FALSE;
+		case TRUE: return Boolean.TRUE;
+		case LONG: {
+			long v = readVarint();
+			return Long.valueOf((v>>>1)^-(v&1));
+		}
+		case DOUBLE: {
+			if(end-pos<8) throw new InvalidMessage();
+			long l=0;
+			for(int i=0;i<8;i++) l=(l<<8)|(bytes[pos++] & 0xff);
+			return Double.valueOf(Double.longBitsToDouble(l));
+		}
+		case STRING:
+		case NAME:
+			return readString(tag);
+		case OBJECT: return readObject(depth+1);
+		case ARRAY: return readArray(depth+1);
+		default: throw new InvalidMessage();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject readObject(int depth) throws InvalidMessage {
+		if(depth>maxDepth) throw new InvalidMessage();
+		int count = readCount();
+		JSONObject obj = new JSONObject();
+		for(int i=0;i<count;i++) {
+			String key = readString(readByte());
+			obj.put(key,readValue(depth));
+		}
+		return obj;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONArray readArray(int depth) throws InvalidMessage {
+		if(depth>maxDepth) throw new InvalidMessage();
+		int count = readCount();
+		JSONArray array = new JSONArray();
+		for(int i=0;i<count;i++) array.add(readValue(depth));
+		return array;
+	}
+
+	private String readString(byte tag) throws InvalidMessage {
+		if(tag==NAME) {
+			long id = readVarint();
+			if(id<0 || id>=names.length) throw new InvalidMessage();
+			return names[(int)id];
+		}
+		if(tag!=STRING) throw new InvalidMessage();
+		int length = readCount();
+		String s = new String(bytes,pos,length,StandardCharsets.UTF_8);
+		pos+=length;
+		return s;
+	}
+
+	/**
+	 * Read a length or count, which can be no more than the bytes left
+	 * since every value takes at least one byte.
+	 */
+	private int readCount() throws InvalidMessage {
+		long count = readVarint();
+		if(count<0 || count>end-pos) throw new InvalidMessage();
+		return (int)count;
+	}
+
+	private long readVarint() throws InvalidMessage {
+		long v=0;
+		for(int shift=0;shift<64;shift+=7) {
+			byte b = readByte();
+			v |= (long)(b & 0x7f)<<shift;
+			if((b & 0x80)==0) return v;
+		}
+		throw new InvalidMessage();
+	}
+
+	private byte readByte() throws InvalidMessage {
+		if(pos>=end) throw new InvalidMessage();
+		return bytes[pos++];
+	}
+}
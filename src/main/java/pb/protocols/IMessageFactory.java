@@ -0,0 +1,19 @@
+package pb.protocols;
+
+/**
+ * Creates a message from a received document, usually the message's
+ * document constructor, e.g. {@code EventRequest::new}.
+ * @see {@link pb.protocols.ProtocolRegistry}
+ * @author aaron
+ *
+ */
+@FunctionalInterface
+public interface IMessageFactory {
+	/**
+	 * Create the message.
+	 * @param doc with the message details
+	 * @return the message
+	 * @throws InvalidMessage if the doc is not a valid message of this kind
+	 */
+	public Message create(Document doc) throws InvalidMessage;
+}
@@ -0,0 +1,23 @@
+package pb.protocols;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+
+/**
+ * Creates a protocol for an endpoint, when the other endpoint first sends
+ * a message for it. The factory casts the manager to the handler interface
+ * that the protocol reports to.
+ * @see {@link pb.protocols.ProtocolRegistry}
+ * @author aaron
+ *
+ */
+@FunctionalInterface
+public interface IProtocolFactory {
+	/**
+	 * Create the protocol.
+	 * @param endpoint the endpoint that will handle the protocol
+	 * @param manager the manager of the endpoint
+	 * @return the protocol
+	 */
+	public Protocol create(Endpoint endpoint, IEndpointHandler manager);
+}
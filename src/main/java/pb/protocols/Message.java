@@ -1,18 +1,12 @@
 package pb.protocols;
 
-import pb.protocols.event.EventReply;
-import pb.protocols.event.EventRequest;
-import pb.protocols.keepalive.KeepAliveReply;
-import pb.protocols.keepalive.KeepAliveRequest;
-import pb.protocols.session.SessionStartReply;
-import pb.protocols.session.SessionStartRequest;
-import pb.protocols.session.SessionStopReply;
-import pb.protocols.session.SessionStopRequest;
+import java.nio.ByteBuffer;
 
 /**
  * Message super class and factory for all protocol messages, to parse a
  * received UTF-8 line of text in JSON format, as an object that represents the
- * message.
+ * message. The kinds of message are looked up in the
+ * {@link pb.protocols.ProtocolRegistry}.
  * 
  * @see {@link pb.protocols.Protocol}
  * @author aaron
@@ -32,6 +26,12 @@ public class Message {
 	 */
 	protected Document doc;
 	
+	/**
+	 * Id of the protocol in the {@link pb.protocols.ProtocolRegistry}, or -1
+	 * if it has not been looked up yet.
+	 */
+	private int protocolId=-1;
+	
 	/**
 	 * Initialiser when given parameters explicitly.
 	 * @param name the name of the message (its classname by convention)
@@ -57,6 +57,11 @@ public class Message {
 		if(!(doc.get(key) instanceof Long)) throw new InvalidMessage();
 	}
 	
+	static public void validateBooleanType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof Boolean)) throw new InvalidMessage();
+	}
+	
 	static public void validateStringType(String key,Document doc) throws InvalidMessage {
 		if(!doc.containsKey(key)) throw new InvalidMessage();
 		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
@@ -77,33 +82,36 @@ public class Message {
 	}
 	
 	/**
-	 * Turn a json string into an appropriate message object.
+	 * Turn a json string into an appropriate message object, see
+	 * {@link pb.protocols.MessageCodec}.
 	 * @param json the string to parse, must be in JSON format
 	 * @return the appropriate message object
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
+		return toMessage(MessageCodec.decode(json));
+	}
+	
+	/**
+	 * Turn binary encoded bytes into an appropriate message object, see
+	 * {@link pb.protocols.BinaryCodec}.
+	 * @param bytes
+	 * @param offset where the message starts
+	 * @param length of the message
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(byte[] bytes, int offset, int length) throws InvalidMessage {
+		return toMessage(BinaryCodec.decode(bytes,offset,length));
+	}
+	
+	static private Message toMessage(Document doc) throws InvalidMessage {
 		// the following test is somewhat repetitive, but it avoids having
 		// to test each message type, handling exceptions for those that are
 		// not the matching message type
 		if(!doc.containsKey("name")) throw new InvalidMessage();
 		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString("name");
-		switch(msg) {
-			case KeepAliveRequest.name: return new KeepAliveRequest(doc);
-			case KeepAliveReply.name: return new KeepAliveReply(doc);
-			case SessionStartRequest.name: return new SessionStartRequest(doc);
-			case SessionStartReply.name: return new SessionStartReply(doc);
-			case SessionStopRequest.name: return new SessionStopRequest(doc);
-			case SessionStopReply.name: return new SessionStopReply(doc);
-			case EventRequest.name: return new EventRequest(doc);
-			case EventReply.name: return new EventReply(doc);
-			// put more message cases here
-			
-			// if nothing matches, its invalid
-			default: throw new InvalidMessage();
-		}
+		return ProtocolRegistry.getInstance().toMessage(doc.getString("name"),doc);
 	}
 	
 	/**
@@ -111,7 +119,16 @@ public class Message {
 	 * @return
 	 */
 	public String toJsonString() {
-		return doc.toJson();
+		return MessageCodec.encode(doc);
+	}
+	
+	/**
+	 * Convert the message to binary for transmission.
+	 * @param headerBytes number of bytes to leave free for the frame header
+	 * @return buffer at position 0 with the header bytes followed by the message
+	 */
+	public ByteBuffer toBinary(int headerBytes) {
+		return BinaryCodec.encode(doc,headerBytes);
 	}
 	
 	/**
@@ -122,6 +139,19 @@ public class Message {
 		return doc.getString("protocolName");
 	}
 	
+	/**
+	 * Return the id of the protocol in the {@link pb.protocols.ProtocolRegistry}
+	 * @return the id, or -1 if the protocol is not registered
+	 */
+	public final int getProtocolId() {
+		if(protocolId<0) protocolId=ProtocolRegistry.getInstance().getProtocolId(getProtocolName());
+		return protocolId;
+	}
+	
+	final void setProtocolId(int protocolId) {
+		this.protocolId=protocolId;
+	}
+	
 	/**
 	 * Return the message name
 	 * @return
@@ -0,0 +1,315 @@
+package pb.protocols;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Hand written JSON reader and writer for messages, used in place of
+ * json-simple's {@link org.json.simple.parser.JSONParser}, which builds a new
+ * lexer for every message, and {@link org.json.simple.JSONObject#toJSONString()}.
+ * <br/>
+ * Decoding is a single pass over the string. The envelope keys, like
+ * {@code name}, {@code protocolName}, {@code type} and {@code timeoutId}, and
+ * the event keys are matched in place and replaced by their constant strings,
+ * so no key is copied and later lookups of them hit on identity. Values
+ * have the same types as json-simple gives them (Long for integers, Double
+ * for other numbers, JSONObject and JSONArray), so messages read the decoded
+ * {@link pb.protocols.Document} as before. Encoding appends straight to a
+ * single StringBuilder. The text is plain JSON either way, so peers using
+ * json-simple read it unchanged.
+ * @see {@link pb.protocols.Message#toMessage(String)}
+ * @author aaron
+ *
+ */
+public class MessageCodec {
+
+	/**
+	 * Keys that most messages carry.
+	 */
+	private static final String[] knownKeys = {
+		"name", "protocolName", "type", "timeoutId",
+		"eventName", "eventId", "eventData", "events", "noReply"
+	};
+
+	private final String json;
+
+	private int pos=0;
+
+	private MessageCodec(String json) {
+		this.json=json;
+	}
+
+	/**
+	 * Decode a message in JSON format.
+	 * @param json
+	 * @return the document of the message
+	 * @throws InvalidMessage if the text is not a JSON object
+	 */
+	public static Document decode(String json) throws InvalidMessage {
+		MessageCodec codec = new MessageCodec(json);
+		codec.skipSpace();
+		JSONObject obj = codec.readObject();
+		codec.skipSpace();
+		if(codec.pos!=json.length()) throw new InvalidMessage();
+		return new Document(obj);
+	}
+
+	/**
+	 * Encode a message's document in JSON format.
+	 * @param doc
+	 * @return the JSON text
+	 */
+	public static String encode(Document doc) {
+		StringBuilder out = new StringBuilder(128);
+		writeObject(doc.obj,out);
+		return out.toString();
+	}
+
+	/*
+	 * Decoding
+	 */
+
+	@SuppressWarnings("unchecked")
+	private JSONObject readObject() throws InvalidMessage {
+		expect('{');
+		JSONObject obj = new JSONObject();
+		skipSpace();
+		if(peek()=='}') {
+			pos++;
+			return obj;
+		}
+		while(true) {
+			skipSpace();
+			String key = readKey();
+			skipSpace();
+			expect(':');
+			skipSpace();
+			obj.put(key,readValue());
+			skipSpace();
+			char c = next();
+			if(c=='}') return obj;
+			if(c!=',') throw new InvalidMessage();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONArray readArray() throws InvalidMessage {
+		expect('[');
+		JSONArray array = new JSONArray();
+		skipSpace();
+		if(peek()==']') {
+			pos++;
+			return array;
+		}
+		while(true) {
+			skipSpace();
+			array.add(readValue());
+			skipSpace();
+			char c = next();
+			if(c==']') return array;
+			if(c!=',') throw new InvalidMessage();
+		}
+	}
+
+	private Object readValue() throws InvalidMessage {
+		char c = peek();
+		switch(c) {
+		case '"': return readString();
+		case '{': return readObject();
+		case '[': return readArray();
+		case 't': return readLiteral("true",Boolean.TRUE);
+		case 'f': return readLiteral("false",Boolean.FALSE);
+		case 'n': return readLiteral("null",null);
+		default:
+			if(c=='-' || (c>='0' && c<='9')) return readNumber();
+			throw new InvalidMessage();
+		}
+	}
+
+	/**
+	 * Read a key, returning the constant string if it is a known key.
+	 */
+	private String readKey() throws InvalidMessage {
+		expect('"');
+		for(String key : knownKeys) {
+			int end = pos+key.length();
+			if(end<json.length() && json.charAt(end)=='"' && json.startsWith(key,pos)) {
+				pos=end+1;
+				return key;
+			}
+		}
+		pos--;
+		return readString();
+	}
+
+	private String readString() throws InvalidMessage {
+		expect('"');
+		int start = pos;
+		// most strings have no escapes and are a single substring
+		while(pos<json.length()) {
+			char c = json.charAt(pos);
+			if(c=='"') return json.substring(start,pos++);
+			if(c=='\\') break;
+			pos++;
+		}
+		StringBuilder s = new StringBuilder(pos-start+16);
+		s.append(json,start,pos);
+		while(true) {
+			char c = next();
+			if(c=='"') return s.toString();
+			if(c!='\\') {
+				s.append(c);
+				continue;
+			}
+			c = next();
+			switch(c) {
+			case '"': case '\\': case '/': s.append(c); break;
+			case 'b': s.append('\b'); break;
+			case 'f': s.append('\f'); break;
+			case 'n': s.append('\n'); break;
+			case 'r': s.append('\r'); break;
+			case 't': s.append('\t'); break;
+			case 'u':
+				if(pos+4>json.length()) throw new InvalidMessage();
+				try {
+					s.append((char)Integer.parseInt(json.substring(pos,pos+4),16));
+				} catch (NumberFormatException e) {
+					throw new InvalidMessage();
+				}
+				pos+=4;
+				break;
+			default: throw new InvalidMessage();
+			}
+		}
+	}
+
+	private Object readNumber() throws InvalidMessage {
+		int start = pos;
+		boolean integer = true;
+		while(pos<json.length()) {
+			char c = json.charAt(pos);
+			if((c>='0' && c<='9') || c=='-') {
+				pos++;
+			} else if(c=='.' || c=='e' || c=='E' || c=='+') {
+				integer = false;
+				pos++;
+			} else {
+				break;
+			}
+		}
+		try {
+			if(integer) return Long.valueOf(Long.parseLong(json,start,pos,10));
+			return Double.valueOf(json.substring(start,pos));
+		} catch (NumberFormatException e) {
+			throw new InvalidMessage();
+		}
+	}
+
+	private Object readLiteral(String literal, Object value) throws InvalidMessage {
+		if(!json.startsWith(literal,pos)) throw new InvalidMessage();
+		pos+=literal.length();
+		return value;
+	}
+
+	private void skipSpace() {
+		while(pos<json.length()) {
+			char c = json.charAt(pos);
+			if(c!=' ' && c!='\n' && c!='\r' && c!='\t') return;
+			pos++;
+		}
+	}
+
+	private char peek() throws InvalidMessage {
+		if(pos>=json.length()) throw new InvalidMessage();
+		return json.charAt(pos);
+	}
+
+	private char next() throws InvalidMessage {
+		if(pos>=json.length()) throw new InvalidMessage();
+		return json.charAt(pos++);
+	}
+
+	private void expect(char c) throws InvalidMessage {
+		if(next()!=c) throw new InvalidMessage();
+	}
+
+	/*
+	 * Encoding
+	 */
+
+	private static void writeObject(Map<?,?> obj, StringBuilder out) {
+		out.append('{');
+		boolean first = true;
+		for(Map.Entry<?,?> entry : obj.entrySet()) {
+			if(!first) out.append(',');
+			first = false;
+			writeString(String.valueOf(entry.getKey()),out);
+			out.append(':');
+			writeValue(entry.getValue(),out);
+		}
+		out.append('}');
+	}
+
+	private static void writeArray(List<?> array, StringBuilder out) {
+		out.append('[');
+		for(int i=0;i<array.size();i++) {
+			if(i>0) out.append(',');
+			writeValue(array.get(i),out);
+		}
+		out.append(']');
+	}
+
+	private static void writeValue(Object value, StringBuilder out) {
+		if(value==null) {
+			out.append("null");
+		} else if(value instanceof String) {
+			writeString((String) value,out);
+		} else if(value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			out.append(((Number) value).longValue());
+		} else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if(Double.isNaN(d) || Double.isInfinite(d)) out.append("null");
+			else out.append(value.toString());
+		} else if(value instanceof Boolean) {
+			out.append(((Boolean) value).booleanValue());
+		} else if(value instanceof Map) {
+			writeObject((Map<?,?>) value,out);
+		} else if(value instanceof List) {
+			writeArray((List<?>) value,out);
+		} else if(value instanceof Document) {
+			writeObject(((Document) value).obj,out);
+		} else {
+			writeString(value.toString(),out);
+		}
+	}
+
+	private static void writeString(String s, StringBuilder out) {
+		out.append('"');
+		int start = 0;
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c>=0x20 && c!='"' && c!='\\') continue;
+			out.append(s,start,i);
+			start = i+1;
+			switch(c) {
+			case '"': out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '\b': out.append("\\b"); break;
+			case '\f': out.append("\\f"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			default:
+				out.append("\\u00");
+				out.append(Character.forDigit(c>>4,16));
+				out.append(Character.forDigit(c&0xf,16));
+			}
+		}
+		out.append(s,start,s.length());
+		out.append('"');
+	}
+}
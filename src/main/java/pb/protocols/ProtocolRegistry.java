@@ -0,0 +1,186 @@
+package pb.protocols;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.keepalive.IKeepAliveProtocolHandler;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * A singleton table of the protocols and messages that endpoints understand.
+ * It must always be accessed statically as ProtocolRegistry.getInstance()...
+ * <br/>
+ * Each protocol is given an integer id when it is registered, and each
+ * message name is mapped to its factory and the id of its protocol. A
+ * received message is decoded with a single lookup of its name, and the
+ * endpoint then finds its protocol by id in an array, see
+ * {@link pb.protocols.Message#getProtocolId()}. Protocols are only created
+ * on an endpoint when the other endpoint first sends a message for them.
+ * <br/>
+ * The session, keep alive and event protocols are registered already. Other
+ * protocols are registered before any endpoint receives their messages, like:
+ * <code>
+ * ProtocolRegistry registry = ProtocolRegistry.getInstance();
+ * registry.registerProtocol(BulkProtocol.protocolName,
+ *     (endpoint,manager)->new BulkProtocol(endpoint,(IBulkProtocolHandler)manager));
+ * registry.registerMessage(BulkRequest.name,BulkProtocol.protocolName,BulkRequest::new);
+ * </code>
+ * @see {@link pb.protocols.Protocol}
+ * @see {@link pb.protocols.Message}
+ * @author aaron
+ *
+ */
+public class ProtocolRegistry {
+	private static ProtocolRegistry registry;
+	
+	/**
+	 * A message's factory and the id of its protocol.
+	 */
+	private static class MessageType {
+		final int protocolId;
+		final IMessageFactory factory;
+		
+		MessageType(int protocolId, IMessageFactory factory) {
+			this.protocolId=protocolId;
+			this.factory=factory;
+		}
+	}
+	
+	/**
+	 * Protocol name to protocol id.
+	 */
+	private final Map<String,Integer> protocolIds = new ConcurrentHashMap<>();
+	
+	/**
+	 * Protocol factories by protocol id, replaced when a protocol is added.
+	 */
+	private volatile IProtocolFactory[] protocolFactories = new IProtocolFactory[0];
+	
+	/**
+	 * Message name to message type.
+	 */
+	private final Map<String,MessageType> messageTypes = new ConcurrentHashMap<>();
+	
+	public ProtocolRegistry() {
+		registerProtocol(SessionProtocol.protocolName,
+				(endpoint,manager)->new SessionProtocol(endpoint,(ISessionProtocolHandler)manager));
+		registerMessage(SessionStartRequest.name,SessionProtocol.protocolName,SessionStartRequest::new);
+		registerMessage(SessionStartReply.name,SessionProtocol.protocolName,SessionStartReply::new);
+		registerMessage(SessionStopRequest.name,SessionProtocol.protocolName,SessionStopRequest::new);
+		registerMessage(SessionStopReply.name,SessionProtocol.protocolName,SessionStopReply::new);
+		
+		registerProtocol(KeepAliveProtocol.protocolName,
+				(endpoint,manager)->new KeepAliveProtocol(endpoint,(IKeepAliveProtocolHandler)manager));
+		registerMessage(KeepAliveRequest.name,KeepAliveProtocol.protocolName,KeepAliveRequest::new);
+		registerMessage(KeepAliveReply.name,KeepAliveProtocol.protocolName,KeepAliveReply::new);
+		
+		registerProtocol(EventProtocol.protocolName,
+				(endpoint,manager)->new EventProtocol(endpoint,(IEventProtocolHandler)manager));
+		registerMessage(EventRequest.name,EventProtocol.protocolName,EventRequest::new);
+		registerMessage(EventReply.name,EventProtocol.protocolName,EventReply::new);
+		registerMessage(EventBatchRequest.name,EventProtocol.protocolName,EventBatchRequest::new);
+	}
+	
+	public static synchronized ProtocolRegistry getInstance() {
+		if(registry==null) registry=new ProtocolRegistry();
+		return registry;
+	}
+	
+	/**
+	 * Register a protocol, or replace the factory of a protocol that is
+	 * already registered.
+	 * @param protocolName the unique name of the protocol
+	 * @param factory creates the protocol for an endpoint
+	 * @return the id of the protocol
+	 */
+	public synchronized int registerProtocol(String protocolName, IProtocolFactory factory) {
+		Integer id = protocolIds.get(protocolName);
+		if(id!=null) {
+			IProtocolFactory[] factories = protocolFactories.clone();
+			factories[id]=factory;
+			protocolFactories=factories;
+			return id;
+		}
+		int newId = protocolFactories.length;
+		IProtocolFactory[] factories = Arrays.copyOf(protocolFactories,newId+1);
+		factories[newId]=factory;
+		protocolFactories=factories;
+		protocolIds.put(protocolName.intern(),newId);
+		return newId;
+	}
+	
+	/**
+	 * Register a message of a protocol that is already registered.
+	 * @param messageName the unique name of the message
+	 * @param protocolName the protocol the message belongs to
+	 * @param factory creates the message from a received document
+	 * @throws IllegalArgumentException if the protocol is not registered
+	 */
+	public void registerMessage(String messageName, String protocolName, IMessageFactory factory) {
+		Integer id = protocolIds.get(protocolName);
+		if(id==null) throw new IllegalArgumentException("protocol is not registered: "+protocolName);
+		messageTypes.put(messageName.intern(),new MessageType(id,factory));
+	}
+	
+	/**
+	 * Turn a parsed document into the message object it names.
+	 * @param name the name of the message in the document
+	 * @param doc the message
+	 * @return the message, with its protocol id set
+	 * @throws InvalidMessage if no registered message matches the document
+	 */
+	public Message toMessage(String name, Document doc) throws InvalidMessage {
+		MessageType type = messageTypes.get(name);
+		if(type==null) throw new InvalidMessage();
+		Message msg = type.factory.create(doc);
+		msg.setProtocolId(type.protocolId);
+		return msg;
+	}
+	
+	/**
+	 * 
+	 * @param protocolName
+	 * @return the id of the protocol, or -1 if it is not registered
+	 */
+	public int getProtocolId(String protocolName) {
+		Integer id = protocolIds.get(protocolName);
+		return id==null ? -1 : id;
+	}
+	
+	/**
+	 * 
+	 * @return the number of registered protocols, ids are less than this
+	 */
+	public int getProtocolCount() {
+		return protocolFactories.length;
+	}
+	
+	/**
+	 * Create a protocol for an endpoint.
+	 * @param protocolId
+	 * @param endpoint
+	 * @param manager the manager of the endpoint
+	 * @return the new protocol, or null if there is no such protocol
+	 */
+	public Protocol newProtocol(int protocolId, Endpoint endpoint, IEndpointHandler manager) {
+		IProtocolFactory[] factories = protocolFactories;
+		if(protocolId<0 || protocolId>=factories.length) return null;
+		return factories[protocolId].create(endpoint,manager);
+	}
+}
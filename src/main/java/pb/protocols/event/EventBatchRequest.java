@@ -0,0 +1,93 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * A number of events sent as one request, acknowledged with a single
+ * {@link pb.protocols.event.EventReply}.
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
+public class EventBatchRequest extends Message {
+	static final public String name = "EventBatchRequest";
+	
+	/**
+	 * Initialiser when given the events explicitly.
+	 * @param events each with an "eventName" or "eventId" and "eventData", in the order
+	 * they were emitted
+	 */
+	public EventBatchRequest(ArrayList<Document> events) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		doc.append("events", events);
+	}
+	
+	/**
+	 * Initialiser for a batch that may not need a reply.
+	 * @param events
+	 * @param replyExpected false if the receiver should not send an
+	 * {@link pb.protocols.event.EventReply}
+	 */
+	public EventBatchRequest(ArrayList<Document> events, boolean replyExpected) {
+		this(events);
+		if(!replyExpected) doc.append("noReply", true);
+	}
+
+	public EventBatchRequest(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		if(!(doc.get("events") instanceof ArrayList)) throw new InvalidMessage();
+		for(Object event : (ArrayList<?>)doc.get("events")) {
+			if(!(event instanceof Document)) throw new InvalidMessage();
+			EventRequest.validateEvent((Document)event);
+		}
+		if(doc.containsKey("noReply")) Message.validateBooleanType("noReply", doc);
+		this.doc=doc;
+	}
+	
+	/**
+	 * @return false if the sender does not want an {@link pb.protocols.event.EventReply}
+	 */
+	public boolean isReplyExpected() {
+		return !doc.containsKey("noReply") || !doc.getBoolean("noReply");
+	}
+	
+	/**
+	 * Make an event for the batch.
+	 * @param eventName
+	 * @param eventData
+	 * @return the event
+	 */
+	public static Document event(String eventName, String eventData) {
+		Document event = new Document();
+		event.append("eventName", eventName);
+		event.append("eventData", eventData);
+		return event;
+	}
+	
+	/**
+	 * Make an event for the batch that is named by its id.
+	 * @param eventName null if the id was defined by an earlier event
+	 * @param eventId the id, defined by this event if it has a name
+	 * @param eventData
+	 * @return the event
+	 */
+	public static Document event(String eventName, long eventId, String eventData) {
+		Document event = new Document();
+		if(eventName!=null) event.append("eventName", eventName);
+		event.append("eventId", eventId);
+		event.append("eventData", eventData);
+		return event;
+	}
+	
+	/**
+	 * @return the events, each with an "eventName" or "eventId" and "eventData"
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<Document> getEvents() {
+		return (ArrayList<Document>) doc.get("events");
+	}
+}
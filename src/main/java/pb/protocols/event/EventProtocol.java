@@ -1,17 +1,58 @@
 package pb.protocols.event;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EndpointClosed;
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Eventable.EventSlot;
+import pb.utils.Timeout;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * Events can be batched: when the property {@code pb.eventBatchWindow} is
+ * more than 0 ms, events emitted within that window are sent together in one
+ * {@link pb.protocols.event.EventBatchRequest}, up to
+ * {@code pb.eventBatchSize} events (default 64) or {@code pb.eventBatchBytes}
+ * bytes of event names and data (default 16kB). An event larger than that
+ * is sent on its own. Events are only batched if the other endpoint said it
+ * supports batches when the session started, see
+ * {@link pb.protocols.session.Capabilities#hasEventBatches()}. Events are
+ * always received in the order they were emitted.
+ * <br/>
+ * Events that do not need to be acknowledged, like frequent status updates,
+ * can be sent without an {@link pb.protocols.event.EventReply} or a timeout.
+ * Either name them in the property {@code pb.unacknowledgedEvents}
+ * (comma separated) or with {@link #setAcknowledged(String, boolean)}, or
+ * emit them with {@link Delivery#UNACKNOWLEDGED} after the data, e.g.
+ * <code>endpoint.emit("cursor",data,EventProtocol.Delivery.UNACKNOWLEDGED)</code>.
+ * Only keep alive and TCP then tell whether the other side is alive.
+ * <br/>
+ * If both endpoints support it, see
+ * {@link pb.protocols.session.Capabilities#hasEventIds()}, an event name is
+ * only sent the first time it is used in a session, together with the id
+ * that stands for it after that, up to {@link #maxEventIds} names. Events
+ * are given their ids while holding the batch lock and are sent in that
+ * order, so an id always reaches the other side before it is used. The
+ * receiver keeps the listeners of each defined id in an array indexed by
+ * the id, so it does not look up the name of each event it receives.
  * @author aaron
  *
  */
@@ -20,10 +61,89 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public static final String protocolName = "EventProtocol";
 	
+	/**
+	 * Whether the other side should acknowledge an event.
+	 */
+	static public enum Delivery {
+		ACKNOWLEDGED,
+		UNACKNOWLEDGED
+	}
+	
+	/**
+	 * Names of events that are not acknowledged unless emitted with
+	 * {@link Delivery#ACKNOWLEDGED}.
+	 */
+	private static final Set<String> unacknowledgedEvents = unacknowledgedEvents();
+	
 	public int eventTimeout = 40000;
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * Time in ms to gather events for a batch, 0 to send each event on its own.
+	 */
+	private static final long batchWindow = Long.parseLong(
+			Utils.getInstance().getProperty("pb.eventBatchWindow","0"));
+	
+	/**
+	 * Most events in a batch.
+	 */
+	private static final int batchSize = Integer.parseInt(
+			Utils.getInstance().getProperty("pb.eventBatchSize","64"));
+	
+	/**
+	 * Most bytes of event names and data in a batch.
+	 */
+	private static final int batchBytes = Integer.parseInt(
+			Utils.getInstance().getProperty("pb.eventBatchBytes",String.valueOf(16*1024)));
+	
+	/**
+	 * Guards the batch, and keeps events in order while it is sent.
+	 */
+	private final ReentrantLock batchLock = new ReentrantLock();
+	
+	/**
+	 * Events waiting to be sent in the next batch.
+	 */
+	private ArrayList<Document> batch = new ArrayList<>();
+	
+	/**
+	 * Bytes of event names and data in the batch.
+	 */
+	private int batchedBytes=0;
+	
+	/**
+	 * Completed with the acknowledgement of the next batch.
+	 */
+	private CompletableFuture<Message> batchReply = new CompletableFuture<>();
+	
+	/**
+	 * Whether any event in the batch needs to be acknowledged.
+	 */
+	private boolean batchAcknowledged=false;
+	
+	/**
+	 * Sends the batch when the window ends.
+	 */
+	private Timeout batchTimer=null;
+	
+	/**
+	 * Most event names that a session gives ids to, later names are always
+	 * sent in full.
+	 */
+	private static final int maxEventIds = 1024;
+	
+	/**
+	 * Ids of the event names sent so far, guarded by the batch lock.
+	 */
+	private final HashMap<String,Integer> sentEventIds = new HashMap<>();
+	
+	/**
+	 * Listeners of the event ids received so far, indexed by id. Only used
+	 * by the thread reading from the endpoint.
+	 */
+	private EventSlot[] receivedEventIds = new EventSlot[16];
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -34,12 +154,14 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		super(endpoint, (Manager)manager);	
 		// Register an event to listen for all events ("*") emitted on this endpoint and
 		// send them to the remote end point; making sure thats events have
-		// only a String argument
+		// only a String argument, optionally followed by how to deliver it
 		endpoint.on("*", (args)->{
 			String eventName = (String) args[0];
 			if(args.length==2 && args[1] instanceof String) {
 				String eventData = (String) args[1];
 				sendEvent(eventName,eventData);
+			} else if(args.length==3 && args[1] instanceof String && args[2] instanceof Delivery) {
+				sendEvent(eventName,(String) args[1],args[2]==Delivery.ACKNOWLEDGED);
 			} else {
 				log.warning("emitted event must have only a single String data argument: "+eventName);
 			}			
@@ -48,17 +170,118 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	/**
 	 * Send and event to the other side, The Doors style :-)
+	 * Events are not held back waiting for earlier events to be acknowledged.
 	 * @param eventName
 	 * @param eventData
+	 * @return completed with the other side's acknowledgement, or exceptionally
+	 * if it was not acknowledged
 	 */
-	public void sendEvent(String eventName, String eventData) {
-		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+	public CompletableFuture<Message> sendEvent(String eventName, String eventData) {
+		return sendEvent(eventName,eventData,!unacknowledgedEvents.contains(eventName));
+	}
+	
+	/**
+	 * Send an event to the other side, choosing whether it is acknowledged.
+	 * @param eventName
+	 * @param eventData
+	 * @param acknowledged false to send it without a reply or a timeout
+	 * @return completed with the other side's acknowledgement, or exceptionally
+	 * if it was not acknowledged; for an unacknowledged event completed with
+	 * null once it has been sent
+	 */
+	public CompletableFuture<Message> sendEvent(String eventName, String eventData, boolean acknowledged) {
+		if(stopped) return CompletableFuture.failedFuture(new EndpointClosed());
+		boolean batched = batchWindow>0 && endpoint.getCapabilities().hasEventBatches();
+		if(!batched && !endpoint.getCapabilities().hasEventIds()) return send(new EventRequest(eventName,eventData,acknowledged),acknowledged);
+		int bytes = eventName.length()+eventData.length();
+		batchLock.lock();
+		try {
+			if(!batched || bytes>=batchBytes) {
+				// too large to batch, but must not overtake the batched events
+				sendBatch();
+				return send(eventRequest(event(eventName,eventData),acknowledged),acknowledged);
+			}
+			if(batchedBytes+bytes>batchBytes) sendBatch();
+			if(batch.isEmpty()) {
+				batchTimer = Utils.getInstance().setTimeout(()->{
+					batchLock.lock();
+					try {
+						sendBatch();
+					} finally {
+						batchLock.unlock();
+					}
+				}, batchWindow);
+			}
+			batch.add(event(eventName,eventData));
+			batchedBytes+=bytes;
+			if(acknowledged) batchAcknowledged=true;
+			CompletableFuture<Message> reply = batchReply;
+			if(batch.size()>=batchSize) sendBatch();
+			return reply;
+		} finally {
+			batchLock.unlock();
+		}
+	}
+	
+	/**
+	 * Make an event, named by its id if the id has been defined, or defining
+	 * an id for its name if there are ids to spare. Called while holding the
+	 * batch lock.
+	 * @param eventName
+	 * @param eventData
+	 * @return the event
+	 */
+	private Document event(String eventName, String eventData) {
+		Integer eventId = sentEventIds.get(eventName);
+		if(eventId!=null) return EventBatchRequest.event(null,eventId,eventData);
+		if(!endpoint.getCapabilities().hasEventIds() || sentEventIds.size()>=maxEventIds)
+			return EventBatchRequest.event(eventName,eventData);
+		eventId = sentEventIds.size();
+		sentEventIds.put(eventName,eventId);
+		return EventBatchRequest.event(eventName,eventId,eventData);
+	}
+	
+	private static EventRequest eventRequest(Document event, boolean acknowledged) {
+		return new EventRequest(event.getString("eventName"),
+				event.containsKey("eventId") ? event.getLong("eventId") : -1,
+				event.getString("eventData"),acknowledged);
+	}
+	
+	/**
+	 * Send the events gathered so far, if any. Called while holding the batch lock.
+	 */
+	private void sendBatch() {
+		if(batch.isEmpty()) return;
+		if(batchTimer!=null) batchTimer.cancel();
+		batchTimer=null;
+		ArrayList<Document> events = batch;
+		CompletableFuture<Message> reply = batchReply;
+		boolean acknowledged = batchAcknowledged;
+		batch = new ArrayList<>();
+		batchedBytes=0;
+		batchReply = new CompletableFuture<>();
+		batchAcknowledged=false;
+		Message msg = events.size()==1 ? eventRequest(events.get(0),acknowledged)
+				: new EventBatchRequest(events,acknowledged);
+		if(stopped) {
+			reply.completeExceptionally(new EndpointClosed());
+			return;
+		}
+		send(msg,acknowledged).whenComplete((m,e)->{
+			if(e!=null) reply.completeExceptionally(e);
+			else reply.complete(m);
+		});
 	}
 	
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		batchLock.lock();
+		try {
+			sendBatch(); // fails the events, they can no longer be sent
+		} finally {
+			batchLock.unlock();
+		}
 	}
 
 	@Override
@@ -76,10 +299,24 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void sendRequest(Message msg) {
 		if(stopped)return;
-		endpoint.sendWithTimeout(msg, ()->{
-			if(!stopped) manager.endpointTimedOut(endpoint, this);
-		}, eventTimeout);
-		
+		request(msg);
+	}
+	
+	/**
+	 * Send a request, waiting for its reply only if it is acknowledged.
+	 */
+	private CompletableFuture<Message> send(Message msg, boolean acknowledged) {
+		if(acknowledged) return request(msg);
+		if(endpoint.send(msg)) return CompletableFuture.completedFuture(null);
+		return CompletableFuture.failedFuture(new EndpointClosed());
+	}
+	
+	private CompletableFuture<Message> request(Message msg) {
+		CompletableFuture<Message> reply = endpoint.request(msg,eventTimeout);
+		reply.whenComplete((m,e)->{
+			if(e instanceof TimeoutException && !stopped) manager.endpointTimedOut(endpoint, this);
+		});
+		return reply;
 	}
 
 	@Override
@@ -91,9 +328,52 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
+		if(msg instanceof EventBatchRequest) {
+			if(((EventBatchRequest)msg).isReplyExpected())
+				endpoint.sendAndCancelTimeout(new EventReply(), msg);
+			try {
+				for(Document event : ((EventBatchRequest)msg).getEvents()) {
+					dispatchEvent(event.getString("eventName"),
+							event.containsKey("eventId") ? event.getLong("eventId") : -1,
+							event.getString("eventData"));
+				}
+			} catch (InvalidMessage e) {
+				manager.protocolViolation(endpoint,this);
+			}
+			return;
+		}
 		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		if(eventRequest.isReplyExpected())
+			endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		try {
+			dispatchEvent(eventRequest.getEventName(),eventRequest.getEventId(),eventRequest.getEventData());
+		} catch (InvalidMessage e) {
+			manager.protocolViolation(endpoint,this);
+		}
+	}
+	
+	/**
+	 * Dispatch a received event, defining its id if it has a name and an id.
+	 * @param eventName null if the event only has an id
+	 * @param eventId -1 if the event only has a name
+	 * @param eventData
+	 * @throws InvalidMessage if the id is out of range or was never defined
+	 */
+	private void dispatchEvent(String eventName, long eventId, String eventData) throws InvalidMessage {
+		if(eventId<0) {
+			endpoint.dispatchEvent(eventName,eventData);
+			return;
+		}
+		if(eventId>=maxEventIds) throw new InvalidMessage();
+		int id = (int)eventId;
+		if(eventName!=null) {
+			if(id>=receivedEventIds.length)
+				receivedEventIds = Arrays.copyOf(receivedEventIds,Math.min(maxEventIds,Math.max(id+1,receivedEventIds.length*2)));
+			receivedEventIds[id] = endpoint.slot(eventName);
+		}
+		EventSlot slot = id<receivedEventIds.length ? receivedEventIds[id] : null;
+		if(slot==null) throw new InvalidMessage();
+		endpoint.dispatchEvent(slot,eventData);
 	}
 
 	@Override
@@ -102,6 +382,25 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		
 	}
 	
+	/**
+	 * Choose whether events with a given name are acknowledged, when they
+	 * are emitted without a {@link Delivery}. Applies to all endpoints.
+	 * @param eventName
+	 * @param acknowledged
+	 */
+	public static void setAcknowledged(String eventName, boolean acknowledged) {
+		if(acknowledged) unacknowledgedEvents.remove(eventName);
+		else unacknowledgedEvents.add(eventName);
+	}
+	
+	private static Set<String> unacknowledgedEvents() {
+		Set<String> eventNames = ConcurrentHashMap.newKeySet();
+		for(String eventName : Utils.getInstance().getProperty("pb.unacknowledgedEvents","").split(",")) {
+			if(!eventName.trim().isEmpty()) eventNames.add(eventName.trim());
+		}
+		return eventNames;
+	}
+	
 	@Override
 	public String getProtocolName() {
 		return protocolName;
@@ -12,18 +12,79 @@ public class EventRequest extends Message {
 		doc.append("eventName", eventName);
 		doc.append("eventData", eventData);
 	}
+	
+	/**
+	 * Initialiser for an event that may not need a reply.
+	 * @param eventName
+	 * @param eventData
+	 * @param replyExpected false if the receiver should not send an
+	 * {@link pb.protocols.event.EventReply}
+	 */
+	public EventRequest(String eventName, String eventData, boolean replyExpected) {
+		this(eventName,eventData);
+		if(!replyExpected) doc.append("noReply", true);
+	}
+	
+	/**
+	 * Initialiser for an event named by its id, see
+	 * {@link pb.protocols.event.EventProtocol}.
+	 * @param eventName null if the id was defined by an earlier event
+	 * @param eventId the id, defined by this event if it has a name, or -1
+	 * for none
+	 * @param eventData
+	 * @param replyExpected
+	 */
+	public EventRequest(String eventName, long eventId, String eventData, boolean replyExpected) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		if(eventName!=null) doc.append("eventName", eventName);
+		if(eventId>=0) doc.append("eventId", eventId);
+		doc.append("eventData", eventData);
+		if(!replyExpected) doc.append("noReply", true);
+	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
-		Message.validateStringType("eventName", doc);
-		Message.validateStringType("eventData", doc);
+		validateEvent(doc);
+		if(doc.containsKey("noReply")) Message.validateBooleanType("noReply", doc);
 		this.doc=doc;
 	}
 	
+	/**
+	 * @return false if the sender does not want an {@link pb.protocols.event.EventReply}
+	 */
+	public boolean isReplyExpected() {
+		return !doc.containsKey("noReply") || !doc.getBoolean("noReply");
+	}
+	
+	/**
+	 * Check an event's name, id and data, it must have a name or an id or both.
+	 * @param event
+	 * @throws InvalidMessage
+	 */
+	static void validateEvent(Document event) throws InvalidMessage {
+		if(event.containsKey("eventName")) Message.validateStringType("eventName", event);
+		else if(!event.containsKey("eventId")) throw new InvalidMessage();
+		if(event.containsKey("eventId")) {
+			Message.validateLongType("eventId", event);
+			if(event.getLong("eventId")<0) throw new InvalidMessage();
+		}
+		Message.validateStringType("eventData", event);
+	}
+	
+	/**
+	 * @return the name of the event, or null if it only has an id
+	 */
 	public String getEventName() {
 		return doc.getString("eventName");
 	}
 	
+	/**
+	 * @return the id of the event, or -1 if it has none
+	 */
+	public long getEventId() {
+		return doc.containsKey("eventId") ? doc.getLong("eventId") : -1;
+	}
+	
 	public String getEventData() {
 		return doc.getString("eventData");
 	}
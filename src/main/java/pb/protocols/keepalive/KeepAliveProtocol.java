@@ -7,25 +7,38 @@ import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
+ * KeepAlive request to the server every {@link #keepAliveRequestInterval()} seconds using
  * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
  * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
+ * client does not receive the response within {@link #keepAliveTimeout()} seconds
  * it will assume the server is dead
  * and signal its manager using
  * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
+ * not receive a KeepAlive request at least every {@link #keepAliveTimeout()} seconds (again using
  * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
  * the client is dead and signal its manager. Upon initialisation, the client
  * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
+ * up to {@link #keepAliveTimeout()} seconds before it assumes the client is dead. The protocol stops
  * when a timeout occurs.
+ * <br/>
+ * Rather than a chain of timeouts per protocol, the deadlines of all running
+ * keep alive protocols are checked by one periodic sweep, see
+ * {@link pb.protocols.keepalive.KeepAliveSweep}. If both endpoints agreed
+ * on it when the session started, see
+ * {@link pb.protocols.session.Capabilities#hasTrafficLiveness()}, any message
+ * received over the endpoint is proof that the other side is alive, so a busy
+ * connection does not send KeepAlive requests at all: the client only sends
+ * one when it has not received, or has not sent, anything for
+ * {@link #keepAliveRequestInterval()}. Otherwise, as with endpoints that do
+ * not know about it or that set the property {@code pb.keepAlive} to
+ * "request", only KeepAlive messages count, as originally.
+ * The interval is agreed on when the session starts, see
+ * {@link pb.protocols.session.Capabilities#getKeepAliveInterval()}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -46,23 +59,18 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public static final String protocolName="KeepAliveProtocol";
 	
-	/**
-	 * Default keep alive request interval
-	 */
-	private int keepAliveRequestInterval = 20000;
+	// Use of volatile is because the timer thread is different to the endpoint thread
+	// and they make use of the same flags/variables.
 	
 	/**
-	 * Default keep alive timeout
+	 * Time that a reply was last seen.
 	 */
-	private int keepAliveTimeout = 40000;
-	
-	// Use of volatile is because the timer thread is different to the endpoint thread
-	// and they make use of the same flags/variables.
+	private volatile long timeReplySeen;
 	
 	/**
 	 * Time that a request was last sent.
 	 */
-	private volatile long timeReplySeen;
+	private volatile long timeRequestSent;
 	
 	/**
 	 * Time that a request was last seen.
@@ -76,9 +84,34 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	private volatile boolean stopped=false;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * Whether we are acting as the client, set when started.
+	 */
+	private volatile boolean client=false;
+	
+	/**
+	 * 
+	 * @return time in ms between keep alive requests
 	 */
-	private volatile boolean timeout=false; 
+	private long keepAliveRequestInterval() {
+		return endpoint.getCapabilities().getKeepAliveInterval();
+	}
+	
+	/**
+	 * 
+	 * @return time in ms without hearing from the other side before it is
+	 * assumed to be dead
+	 */
+	private long keepAliveTimeout() {
+		return 2*keepAliveRequestInterval();
+	}
+	
+	/**
+	 * 
+	 * @return whether any received message counts as proof of life
+	 */
+	private boolean trafficIsLiveness() {
+		return endpoint.getCapabilities().hasTrafficLiveness();
+	}
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -103,6 +136,7 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		KeepAliveSweep.getInstance().remove(this);
 	}
 	
 	/*
@@ -111,80 +145,81 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
+	 * just wait for {@link #keepAliveTimeout()} seconds and if no (new) request has been seen
 	 * then timeout. Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
 		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
-	}
-	
-	/**
-	 * callback to check for client timeout
-	 */
-	public void checkClientTimeout() {
-		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
-			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
-		}
+		KeepAliveSweep.getInstance().add(this);
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
 	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * {@link #keepAliveTimeout()} seconds.
+	 * Keep doing this every {@link #keepAliveRequestInterval()} seconds until cancelled.
 	 */
 	public void startAsClient() {
+		client=true;
 		// assume we saw a reply already
 		timeReplySeen = Instant.now().toEpochMilli();
 		// send a request straight away
-		sendAnotherRequest();	
+		sendAnotherRequest(timeReplySeen);
+		KeepAliveSweep.getInstance().add(this);
 	}
 	
 	/**
-	 * callback to send new request
+	 * Called by the sweep to check the deadlines of this protocol.
+	 * @param now current time in ms
 	 */
-	public void sendAnotherRequest() {
+	void check(long now) {
 		if(stopped)return;
-		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
+		if(client) checkServerTimeout(now);
+		else checkClientTimeout(now);
 	}
 	
 	/**
-	 * callback to check for server timeout
+	 * check for client timeout
 	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
+	private void checkClientTimeout(long now) {
+		long lastSeen = timeRequestSeen;
+		if(trafficIsLiveness()) lastSeen = Math.max(lastSeen,endpoint.getLastReceived());
+		if(now-lastSeen > keepAliveTimeout()) {
+			// timeout :-(
+			stopProtocol();
 			manager.endpointTimedOut(endpoint,this);
+		}
+	}
+	
+	/**
+	 * check for server timeout, and send another request when one is due
+	 */
+	private void checkServerTimeout(long now) {
+		long lastSeen = timeReplySeen;
+		if(trafficIsLiveness()) lastSeen = Math.max(lastSeen,endpoint.getLastReceived());
+		if(now-lastSeen > keepAliveTimeout()) {
+			//we timed out :-(
 			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
+			manager.endpointTimedOut(endpoint,this);
+			return;
+		}
+		if(now-timeRequestSent < keepAliveRequestInterval()) return;
+		// the server needs to hear from us as much as we need to hear from it
+		if(!trafficIsLiveness() || now-lastSeen >= keepAliveRequestInterval()
+				|| now-endpoint.getLastSent() >= keepAliveRequestInterval()) {
+			sendAnotherRequest(now);
 		}
 	}
-
+	
+	/**
+	 * send new request
+	 */
+	private void sendAnotherRequest(long now) {
+		if(stopped)return;
+		timeRequestSent = now;
+		sendRequest(new KeepAliveRequest());
+	}
+	
 	/**
 	 * Send a keep alive request.
 	 * @param msg
@@ -0,0 +1,94 @@
+package pb.protocols.keepalive;
+
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * Checks the deadlines of every running {@link KeepAliveProtocol} with a
+ * single periodic timeout, rather than each protocol keeping its own chain
+ * of timeouts. The sweep runs every {@code pb.keepAliveSweep} ms (default
+ * 1000) while there are protocols to check. It must always be accessed
+ * statically as KeepAliveSweep.getInstance()...
+ *
+ * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+ * @author aaron
+ *
+ */
+class KeepAliveSweep {
+	private static Logger log = Logger.getLogger(KeepAliveSweep.class.getName());
+
+	private static KeepAliveSweep keepAliveSweep;
+
+	/**
+	 * Time between sweeps in ms.
+	 */
+	private final long sweepInterval = Long.parseLong(
+			Utils.getInstance().getProperty("pb.keepAliveSweep","1000"));
+
+	private final Set<KeepAliveProtocol> protocols = ConcurrentHashMap.newKeySet();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Whether a sweep is scheduled.
+	 */
+	private boolean scheduled=false;
+
+	static synchronized KeepAliveSweep getInstance() {
+		if(keepAliveSweep==null) keepAliveSweep=new KeepAliveSweep();
+		return keepAliveSweep;
+	}
+
+	/**
+	 * Start checking a protocol.
+	 * @param protocol
+	 */
+	void add(KeepAliveProtocol protocol) {
+		protocols.add(protocol);
+		lock.lock();
+		try {
+			if(!scheduled) schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop checking a protocol.
+	 * @param protocol
+	 */
+	void remove(KeepAliveProtocol protocol) {
+		protocols.remove(protocol);
+	}
+
+	private void schedule() {
+		scheduled=true;
+		Utils.getInstance().setTimeout(()->{
+			sweep();
+		}, sweepInterval);
+	}
+
+	private void sweep() {
+		long now = Instant.now().toEpochMilli();
+		for(KeepAliveProtocol protocol : protocols) {
+			try {
+				protocol.check(now);
+			} catch (RuntimeException e) {
+				log.severe("keep alive check failed: "+e);
+			}
+		}
+		lock.lock();
+		try {
+			// stop sweeping when there is nothing to check, so the timer can stop
+			if(protocols.isEmpty()) scheduled=false;
+			else schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package pb.protocols.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.managers.endpoint.Framing;
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.utils.Utils;
+
+/**
+ * What an endpoint supports, exchanged when a session starts so that both
+ * endpoints can agree on how to talk to each other, see
+ * {@link pb.protocols.session.SessionProtocol}. The client offers its
+ * capabilities in the {@link pb.protocols.session.SessionStartRequest}, the
+ * server replies with what they agree on, and both endpoints then use the
+ * agreed capabilities, see {@link pb.managers.endpoint.Endpoint#startSession(Capabilities)}.
+ * <br/>
+ * An endpoint that sends no capabilities is treated as {@link #legacy()},
+ * apart from the framing it may offer on its own. New capabilities must have
+ * a default that matches the behaviour of endpoints that do not know about
+ * them.
+ * <br/>
+ * An application can say that it supports something with a feature, named
+ * with {@link #addLocalFeature(String)} before sessions start, so that it only
+ * relies on it with endpoints that have it too, see {@link #hasFeature(String)}.
+ * @author aaron
+ *
+ */
+public class Capabilities {
+
+	/**
+	 * Time in ms between keep alive requests, from the property
+	 * {@code pb.keepAliveInterval}. The keep alive timeout is twice this.
+	 */
+	private static final long localKeepAliveInterval = Long.parseLong(
+			Utils.getInstance().getProperty("pb.keepAliveInterval","20000"));
+
+	/**
+	 * Whether any message received counts as proof that the other endpoint
+	 * is alive, from the property {@code pb.keepAlive}, "traffic" (default)
+	 * or "request" to only count keep alive requests and replies.
+	 */
+	private static final boolean localTrafficLiveness =
+			!"request".equals(Utils.getInstance().getProperty("pb.keepAlive","traffic"));
+
+	/**
+	 * Keep alive interval of endpoints that do not say.
+	 */
+	private static final long legacyKeepAliveInterval = 20000;
+
+	/**
+	 * Largest frame of endpoints that do not say, assumed to be the same as
+	 * ours as it was before capabilities were exchanged.
+	 */
+	private static final long legacyMaxFrameSize = Framing.maxFrameSize;
+
+	/**
+	 * Frame compression to offer, from the property {@code pb.compression},
+	 * "deflate" or "none" (default).
+	 */
+	private static final String localCompression =
+			Utils.getInstance().getProperty("pb.compression","none");
+
+	/**
+	 * The only frame compression there is.
+	 */
+	private static final String deflate = "deflate";
+
+	/**
+	 * Features of the application that this endpoint offers.
+	 */
+	private static final Set<String> localFeatures = ConcurrentHashMap.newKeySet();
+
+	private static final Capabilities legacy = new Capabilities(
+			List.of(Framing.UTF),legacyMaxFrameSize,legacyKeepAliveInterval,false,"none",false,false,Set.of());
+
+	/**
+	 * Framings, most preferred first, or the single agreed framing.
+	 */
+	private final List<Framing> framings;
+
+	private final long maxFrameSize;
+
+	private final long keepAliveInterval;
+
+	private final boolean eventBatches;
+
+	/**
+	 * Frame compression, "deflate" or "none".
+	 */
+	private final String compression;
+
+	private final boolean eventIds;
+
+	private final boolean trafficLiveness;
+
+	private final Set<String> features;
+
+	private Capabilities(List<Framing> framings, long maxFrameSize, long keepAliveInterval,
+			boolean eventBatches, String compression, boolean eventIds, boolean trafficLiveness,
+			Set<String> features) {
+		this.framings=framings;
+		this.maxFrameSize=maxFrameSize;
+		this.keepAliveInterval=keepAliveInterval;
+		this.eventBatches=eventBatches;
+		this.compression=compression;
+		this.eventIds=eventIds;
+		this.trafficLiveness=trafficLiveness;
+		this.features=features;
+	}
+
+	/**
+	 * Offer a feature of the application in the sessions that start from now
+	 * on.
+	 * @param feature a name without commas, e.g. of an event that the
+	 * application understands
+	 */
+	public static void addLocalFeature(String feature) {
+		localFeatures.add(feature);
+	}
+
+	/**
+	 *
+	 * @return what this endpoint supports
+	 */
+	public static Capabilities local() {
+		return new Capabilities(Framing.supported,Framing.maxFrameSize,localKeepAliveInterval,true,
+				localCompression,true,localTrafficLiveness,Set.copyOf(localFeatures));
+	}
+
+	/**
+	 *
+	 * @return what an endpoint that knows nothing of capabilities supports,
+	 * which is also what is used until a session has started
+	 */
+	public static Capabilities legacy() {
+		return legacy;
+	}
+
+	/**
+	 * Read the capabilities sent by the other endpoint.
+	 * @param doc the capabilities, or a session start message of an endpoint
+	 * that does not know about them, which may only give its framing
+	 * @return the capabilities, with defaults for any that were not given
+	 * @throws InvalidMessage if a capability has the wrong type
+	 */
+	public static Capabilities fromDocument(Document doc) throws InvalidMessage {
+		List<Framing> framings = new ArrayList<>();
+		if(doc.containsKey("framing")) {
+			Message.validateStringType("framing", doc);
+			for(String framingName : doc.getString("framing").split(",")) {
+				Framing framing = Framing.forName(framingName.trim());
+				// framings we do not know of can never be agreed on
+				if(framing!=null) framings.add(framing);
+			}
+		}
+		if(framings.isEmpty()) framings.add(Framing.UTF);
+		long maxFrameSize = legacyMaxFrameSize;
+		if(doc.containsKey("maxFrameSize")) {
+			Message.validateLongType("maxFrameSize", doc);
+			maxFrameSize = doc.getLong("maxFrameSize");
+		}
+		long keepAliveInterval = legacyKeepAliveInterval;
+		if(doc.containsKey("keepAliveInterval")) {
+			Message.validateLongType("keepAliveInterval", doc);
+			keepAliveInterval = doc.getLong("keepAliveInterval");
+		}
+		boolean eventBatches = false;
+		if(doc.containsKey("eventBatches")) {
+			Message.validateBooleanType("eventBatches", doc);
+			eventBatches = doc.getBoolean("eventBatches");
+		}
+		String compression = "none";
+		if(doc.containsKey("compression")) {
+			Message.validateStringType("compression", doc);
+			compression = doc.getString("compression");
+		}
+		boolean eventIds = false;
+		if(doc.containsKey("eventIds")) {
+			Message.validateBooleanType("eventIds", doc);
+			eventIds = doc.getBoolean("eventIds");
+		}
+		boolean trafficLiveness = false;
+		if(doc.containsKey("trafficLiveness")) {
+			Message.validateBooleanType("trafficLiveness", doc);
+			trafficLiveness = doc.getBoolean("trafficLiveness");
+		}
+		Set<String> features = new HashSet<>();
+		if(doc.containsKey("features")) {
+			Message.validateStringType("features", doc);
+			for(String feature : doc.getString("features").split(",")) {
+				if(!feature.isBlank()) features.add(feature.trim());
+			}
+		}
+		if(maxFrameSize<=0 || keepAliveInterval<=0) throw new InvalidMessage();
+		return new Capabilities(framings,maxFrameSize,keepAliveInterval,eventBatches,compression,eventIds,
+				trafficLiveness,Collections.unmodifiableSet(features));
+	}
+
+	/**
+	 *
+	 * @return the capabilities to send to the other endpoint
+	 */
+	public Document toDocument() {
+		Document doc = new Document();
+		doc.append("framing", getFramingNames());
+		doc.append("maxFrameSize", maxFrameSize);
+		doc.append("keepAliveInterval", keepAliveInterval);
+		doc.append("eventBatches", eventBatches);
+		doc.append("compression", compression);
+		doc.append("eventIds", eventIds);
+		doc.append("trafficLiveness", trafficLiveness);
+		doc.append("features", getFeatureNames());
+		return doc;
+	}
+
+	/**
+	 * Agree on what both endpoints support.
+	 * @param offered the other endpoint's capabilities, its preferences come first
+	 * @return the agreed capabilities
+	 */
+	public Capabilities agree(Capabilities offered) {
+		Set<String> bothFeatures = new HashSet<>(features);
+		bothFeatures.retainAll(offered.features);
+		Framing framing = Framing.UTF;
+		for(Framing offeredFraming : offered.framings) {
+			if(offeredFraming!=Framing.UTF && framings.contains(offeredFraming)) {
+				framing = offeredFraming;
+				break;
+			}
+		}
+		return new Capabilities(List.of(framing),
+				Math.min(maxFrameSize,offered.maxFrameSize),
+				// the slower endpoint must not time out waiting for the faster one
+				Math.max(keepAliveInterval,offered.keepAliveInterval),
+				eventBatches && offered.eventBatches,
+				// compressed frames are marked in their 4 byte length
+				framing.isLengthPrefixed() && deflate.equals(compression)
+					&& deflate.equals(offered.compression) ? deflate : "none",
+				eventIds && offered.eventIds,
+				// each endpoint must count the other's traffic, or requests must be sent
+				trafficLiveness && offered.trafficLiveness,
+				Collections.unmodifiableSet(bothFeatures));
+	}
+
+	/**
+	 *
+	 * @return the most preferred framing, which for agreed capabilities is
+	 * the agreed framing
+	 */
+	public Framing getFraming() {
+		return framings.get(0);
+	}
+
+	/**
+	 *
+	 * @return comma separated framing names, most preferred first
+	 */
+	public String getFramingNames() {
+		StringBuilder names = new StringBuilder();
+		for(Framing framing : framings) {
+			if(names.length()>0) names.append(',');
+			names.append(framing.getFramingName());
+		}
+		return names.toString();
+	}
+
+	/**
+	 *
+	 * @return largest frame, in bytes, that may be sent
+	 */
+	public long getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 *
+	 * @return time in ms between keep alive requests
+	 */
+	public long getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	/**
+	 *
+	 * @return whether events may be sent in an {@link pb.protocols.event.EventBatchRequest}
+	 */
+	public boolean hasEventBatches() {
+		return eventBatches;
+	}
+
+	/**
+	 *
+	 * @return whether large frames are compressed, see
+	 * {@link pb.managers.endpoint.Endpoint#getCompressionRatio()}
+	 */
+	public boolean hasCompression() {
+		return deflate.equals(compression);
+	}
+
+	/**
+	 *
+	 * @return whether event names may be sent as ids once defined, see
+	 * {@link pb.protocols.event.EventProtocol}
+	 */
+	public boolean hasEventIds() {
+		return eventIds;
+	}
+
+	/**
+	 *
+	 * @return whether any message received shows that the other endpoint is
+	 * alive, so that keep alive requests are only needed when the session is
+	 * idle, see {@link pb.protocols.keepalive.KeepAliveProtocol}
+	 */
+	public boolean hasTrafficLiveness() {
+		return trafficLiveness;
+	}
+
+	/**
+	 *
+	 * @param feature
+	 * @return whether the feature of the application is offered, or was
+	 * agreed on by both endpoints, see {@link #addLocalFeature(String)}
+	 */
+	public boolean hasFeature(String feature) {
+		return features.contains(feature);
+	}
+
+	/**
+	 *
+	 * @return comma separated names of the features, in order
+	 */
+	private String getFeatureNames() {
+		return String.join(",",new TreeSet<>(features));
+	}
+
+	@Override
+	public String toString() {
+		return "framing="+getFramingNames()+", maxFrameSize="+maxFrameSize
+				+", keepAliveInterval="+keepAliveInterval+", eventBatches="+eventBatches
+				+", compression="+compression+", eventIds="+eventIds
+				+", trafficLiveness="+trafficLiveness+", features="+getFeatureNames();
+	}
+}
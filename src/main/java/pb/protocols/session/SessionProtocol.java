@@ -1,5 +1,6 @@
 package pb.protocols.session;
 
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
@@ -18,6 +19,16 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The session start request offers the client's capabilities, like the
+ * framings it supports, most preferred first, see
+ * {@link pb.protocols.session.Capabilities}. The server agrees on what both
+ * support and replies with that. Both endpoints then use the agreed
+ * capabilities together, switching framing if needed, which for binary
+ * framing also switches the message encoding. Endpoints that do not know
+ * about capabilities ignore the offer, apart from the framings which are
+ * also offered on their own, and are treated as supporting only what they
+ * did before capabilities were exchanged.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -98,7 +109,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		sendRequest(new SessionStartRequest(Capabilities.local()));
 	}
 
 	/**
@@ -122,16 +133,17 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	}
 	
 	/**
-	 * Just send a request, nothing special.
+	 * Just send a request, nothing special. The reply is handled by
+	 * {@link #receiveReply(Message)}.
 	 * @param msg
 	 */
 	@Override
 	public void sendRequest(Message msg) {
-		endpoint.sendWithTimeout(msg,()->{
+		endpoint.request(msg,sessionTimeout).whenComplete((reply,e)->{
 			// the message timed out
-			if(!stopped)
+			if(e instanceof TimeoutException && !stopped)
 			manager.endpointTimedOut(endpoint, this);
-		},sessionTimeout);
+		});
 	}
 
 	/**
@@ -150,6 +162,9 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			// the server has agreed already, this only protects against it
+			// agreeing to something we do not support
+			endpoint.startSession(Capabilities.local().agree(((SessionStartReply)msg).getCapabilities()));
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -178,7 +193,9 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			Capabilities agreed = Capabilities.local().agree(((SessionStartRequest)msg).getCapabilities());
+			endpoint.sendAndCancelTimeout(new SessionStartReply(agreed),msg);
+			endpoint.startSession(agreed);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -1,5 +1,6 @@
 package pb.protocols.session;
 
+import pb.managers.endpoint.Framing;
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
@@ -21,6 +22,19 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Initialiser with the capabilities that were agreed on. The agreed
+	 * framing is also given on its own, for endpoints that do not know
+	 * about capabilities.
+	 * @param capabilities
+	 */
+	public SessionStartReply(Capabilities capabilities) {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		if(capabilities.getFraming()!=Framing.UTF)
+			doc.append("framing", capabilities.getFraming().getFramingName());
+		doc.append("capabilities", capabilities.toDocument());
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -29,7 +43,30 @@ public class SessionStartReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		if(doc.containsKey("capabilities")) {
+			if(!(doc.get("capabilities") instanceof Document)) throw new InvalidMessage();
+			Capabilities.fromDocument((Document)doc.get("capabilities"));
+		} else {
+			// an endpoint that does not know about capabilities, just the framing, if any
+			Capabilities.fromDocument(doc);
+		}
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return the agreed capabilities, or those of an endpoint that does
+	 * not know about capabilities if none were given
+	 */
+	public Capabilities getCapabilities() {
+		try {
+			if(doc.containsKey("capabilities"))
+				return Capabilities.fromDocument((Document)doc.get("capabilities"));
+			// just the framing, if any
+			return Capabilities.fromDocument(doc);
+		} catch (InvalidMessage e) {
+			// already validated
+			return Capabilities.legacy();
+		}
+	}
 }
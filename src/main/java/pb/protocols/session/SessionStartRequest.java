@@ -21,6 +21,18 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser that offers the capabilities of this endpoint. The
+	 * framings are also offered on their own, for endpoints that do not
+	 * know about capabilities.
+	 * @param capabilities
+	 */
+	public SessionStartRequest(Capabilities capabilities) {
+		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		doc.append("framing", capabilities.getFramingNames());
+		doc.append("capabilities", capabilities.toDocument());
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -29,7 +41,30 @@ public class SessionStartRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Request,doc);
+		if(doc.containsKey("capabilities")) {
+			if(!(doc.get("capabilities") instanceof Document)) throw new InvalidMessage();
+			Capabilities.fromDocument((Document)doc.get("capabilities"));
+		} else {
+			// an endpoint that does not know about capabilities, just the framing, if any
+			Capabilities.fromDocument(doc);
+		}
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return the offered capabilities, or those of an endpoint that does
+	 * not know about capabilities if none were given
+	 */
+	public Capabilities getCapabilities() {
+		try {
+			if(doc.containsKey("capabilities"))
+				return Capabilities.fromDocument((Document)doc.get("capabilities"));
+			// just the framing, if any
+			return Capabilities.fromDocument(doc);
+		} catch (InvalidMessage e) {
+			// already validated
+			return Capabilities.legacy();
+		}
+	}
 }
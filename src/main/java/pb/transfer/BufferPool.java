@@ -0,0 +1,60 @@
+package pb.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pb.utils.Utils;
+
+/**
+ * A pool of direct buffers of {@link pb.utils.Utils#chunkSize} bytes, that a
+ * reader of a file, such as a {@link pb.transfer.HashTree}, takes when it
+ * starts and gives back when it finishes, so each has a buffer of its own
+ * without allocating one every time. Direct
+ * buffers are read into by the file channel without an extra copy, but are
+ * costly to allocate and are only freed by the garbage collector, hence the
+ * pool. At most {@code pb.bufferPoolSize} buffers (default 64) are kept,
+ * more are allocated when needed and dropped when given back.
+ * @author aaron
+ *
+ */
+public class BufferPool {
+
+	private static BufferPool pool=null;
+
+	private static final int maxPooled = Integer.parseInt(
+			Utils.getInstance().getProperty("pb.bufferPoolSize","64"));
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	public static synchronized BufferPool getInstance() {
+		if(pool==null) pool=new BufferPool();
+		return pool;
+	}
+
+	/**
+	 *
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer take() {
+		ByteBuffer buffer = buffers.poll();
+		if(buffer==null) return ByteBuffer.allocateDirect(Utils.chunkSize);
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back, it must no longer be used.
+	 * @param buffer from {@link #take()}
+	 */
+	public void give(ByteBuffer buffer) {
+		if(pooled.incrementAndGet()>maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffers.add(buffer);
+	}
+}
@@ -0,0 +1,125 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Receives a file as chunks in events from a {@link pb.transfer.ChunkSender},
+ * one missing range of the file at a time, see
+ * {@link pb.transfer.DownloadState}. Each chunk is written where it belongs
+ * in the file and recorded in the download's state, and the credit for more
+ * chunks is worked out with a {@link pb.transfer.CreditWindow}.
+ * @author aaron
+ *
+ */
+public class ChunkReceiver {
+
+	private final FileChannel out;
+
+	private final DownloadState state;
+
+	private final CreditWindow credit;
+
+	/**
+	 * Ranges still to ask for.
+	 */
+	private final List<long[]> ranges;
+
+	/**
+	 * Where the next chunk goes.
+	 */
+	private long position=0;
+
+	private boolean closed=false;
+
+	/**
+	 *
+	 * @param out the file to write, closed when the download finishes or is
+	 * abandoned
+	 * @param state of the download
+	 * @param window chunks that may be in flight
+	 */
+	public ChunkReceiver(FileChannel out, DownloadState state, int window) {
+		this.out=out;
+		this.state=state;
+		this.credit=new CreditWindow(window);
+		this.ranges=state.missing();
+	}
+
+	/**
+	 * Start on the next range, once the previous one has all arrived.
+	 * @return the range as {position,length}, or null if there are no more
+	 */
+	public synchronized long[] next() {
+		if(ranges.isEmpty()) return null;
+		long[] range = ranges.remove(0);
+		position=range[0];
+		return range;
+	}
+
+	/**
+	 * Start on the whole file instead of the ranges still to ask for, when
+	 * the sender can only send whole files. The chunks that already arrived
+	 * are written again.
+	 * @return the range as {position,length}
+	 */
+	public synchronized long[] restart() {
+		ranges.clear();
+		position=0;
+		return new long[] {0,Long.MAX_VALUE};
+	}
+
+	/**
+	 *
+	 * @return the first grant to send for the range
+	 */
+	public long start() {
+		return credit.start();
+	}
+
+	/**
+	 * Write a chunk that has arrived.
+	 * @param chunk
+	 * @return the grant to send, or -1 if none is due yet
+	 * @throws IOException if the file or its state can't be written
+	 */
+	public synchronized long received(ByteBuffer chunk) throws IOException {
+		long start = position;
+		while(chunk.hasRemaining()) {
+			position+=out.write(chunk,position);
+		}
+		state.written(start,position-start);
+		return credit.received();
+	}
+
+	/**
+	 * Finish the download, once all of the ranges have arrived.
+	 * @throws IOException
+	 */
+	public synchronized void finish() throws IOException {
+		if(closed) return;
+		if(state.getSize()<0) {
+			// the file ended with the last range
+			out.truncate(position);
+		}
+		closed=true;
+		out.close();
+		state.delete();
+	}
+
+	/**
+	 * Save what has arrived and close the file, to resume later.
+	 * @throws IOException
+	 */
+	public synchronized void abandon() throws IOException {
+		if(closed) return;
+		closed=true;
+		try {
+			state.save();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Base64;
+
+import pb.managers.endpoint.Endpoint;
+import pb.transfer.MappedFileCache.SharedFile;
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * Sends a file to the other side of an endpoint as Base64 chunks in events,
+ * as fast as the other side grants credit for them and the rate limits allow.
+ * <br/>
+ * Credit is a window of chunks: after asking for a file the receiver grants
+ * credit for the first {@code window} chunks, and as chunks arrive it grants
+ * more, so that up to a window of chunks is always in flight. A grant is the
+ * total number of chunks of the transfer that may have been sent, so grants
+ * can not add up to more than the receiver asked for. Once the window is
+ * used up the sender waits for the next grant, instead of the fixed delay
+ * it used to wait after each chunk.
+ * <br/>
+ * A receiver that predates credit never grants any, so its transfer is sent
+ * without credit: the window slides forward as long as the endpoint can take
+ * more, and when too many bytes are waiting to be written, see
+ * {@link pb.managers.endpoint.Endpoint#endpointUnwritable}, the sender waits
+ * until {@link #writable()} is called. Transfers with credit wait for it too.
+ * <br/>
+ * Each chunk takes tokens from the transfer's {@link pb.transfer.TokenBucket}
+ * and from the one shared by all transfers to the same peer, and when either
+ * is empty the sender waits until it has refilled.
+ * <br/>
+ * There is one sender per endpoint and it sends one file, or one range of a
+ * file, at a time, reading
+ * it from the file's regions mapped by the {@link pb.transfer.MappedFileCache},
+ * and logs the transfer's throughput when it is done. It is
+ * driven by the threads that call its methods and by timer callbacks, it has
+ * no thread of its own.
+ * @author aaron
+ *
+ */
+public class ChunkSender {
+	private static Logger log = Logger.getLogger(ChunkSender.class.getName());
+
+	private final Endpoint endpoint;
+
+	/**
+	 * Event that carries a chunk, or "" for the end of the file.
+	 */
+	private final String contentsEvent;
+
+	/**
+	 * Event that says the file could not be read.
+	 */
+	private final String errorEvent;
+
+	/**
+	 * Shared by the transfers to the same peer, may be null.
+	 */
+	private final TokenBucket peerLimit;
+
+	private SharedFile in=null;
+
+	/**
+	 * Where the next chunk is read from, and bytes of the range still to
+	 * be sent.
+	 */
+	private long position=0;
+	
+	private long remaining=0;
+
+	/**
+	 * Bytes of the transfer sent, and when it started in ns.
+	 */
+	private long bytes=0;
+
+	private long started=0;
+
+	private TokenBucket transferLimit=null;
+
+	/**
+	 * Chunks of the transfer sent, and the most that may be sent.
+	 */
+	private long sent=0;
+
+	private long granted=0;
+
+	/**
+	 * Set while waiting for the rate limits.
+	 */
+	private Timeout rateWait=null;
+
+	/**
+	 *
+	 * @param endpoint to send the chunks on
+	 * @param contentsEvent event to emit with each chunk
+	 * @param errorEvent event to emit if the file can not be read
+	 * @param peerLimit rate limit shared by all transfers to the same peer, or null
+	 */
+	public ChunkSender(Endpoint endpoint, String contentsEvent, String errorEvent, TokenBucket peerLimit) {
+		this.endpoint=endpoint;
+		this.contentsEvent=contentsEvent;
+		this.errorEvent=errorEvent;
+		this.peerLimit=peerLimit;
+	}
+
+	/**
+	 * Start sending a file, abandoning the file being sent, if any. No
+	 * chunks are sent until the receiver grants credit for them, if it
+	 * grants credit.
+	 * @param in the file, closed when it has been sent
+	 * @param transferLimit rate limit of this transfer, or null
+	 * @param credited whether the receiver grants credit
+	 */
+	public void start(SharedFile in, TokenBucket transferLimit, boolean credited) {
+		start(in,0,Long.MAX_VALUE,transferLimit,credited);
+	}
+	
+	/**
+	 * Start sending a range of a file, abandoning the file being sent, if
+	 * any. No chunks are sent until the receiver grants credit for them, if
+	 * it grants credit.
+	 * @param in the file, closed when the range has been sent
+	 * @param position of the first byte
+	 * @param length most bytes to send, fewer if the file ends first
+	 * @param transferLimit rate limit of this transfer, or null
+	 * @param credited whether the receiver grants credit
+	 */
+	public synchronized void start(SharedFile in, long position, long length, TokenBucket transferLimit,
+			boolean credited) {
+		if(this.in!=null) {
+			log.warning("abandoning a file transfer to start another");
+			finish();
+		}
+		this.in=in;
+		this.transferLimit=transferLimit;
+		this.position=position;
+		remaining=length;
+		sent=0;
+		granted = credited ? 0 : Long.MAX_VALUE;
+		bytes=0;
+		started=System.nanoTime();
+		if(!credited) pump();
+	}
+
+	/**
+	 * Allow more chunks to be sent.
+	 * @param chunks total chunks of the transfer that may have been sent
+	 */
+	public synchronized void grant(long chunks) {
+		if(in==null) return; // a late grant for a finished transfer
+		granted = Math.max(granted,chunks);
+		if(rateWait==null) pump();
+	}
+
+	/**
+	 * Go on sending, once the endpoint can take more bytes, see
+	 * {@link pb.managers.endpoint.Endpoint#endpointWritable}.
+	 */
+	public synchronized void writable() {
+		if(in!=null && rateWait==null) pump();
+	}
+
+	/**
+	 * Stop sending, e.g. when the endpoint has closed.
+	 */
+	public synchronized void stop() {
+		finish();
+	}
+
+	/**
+	 * Send chunks until the credit runs out, a rate limit is reached or the
+	 * endpoint can't take more. Called while holding this object's lock.
+	 */
+	private void pump() {
+		while(in!=null && sent<granted && endpoint.isWritable()) {
+			byte[] chunk;
+			try {
+				chunk = in.read(position,(int)Math.min(remaining,Utils.chunkSize));
+			} catch (IOException e) {
+				endpoint.emit(errorEvent,e.toString());
+				finish();
+				return;
+			}
+			if(chunk.length==0) {
+				endpoint.emit(contentsEvent, ""); // signals no more bytes in file
+				long time = System.nanoTime()-started;
+				log.info("upload finished: "+endpoint.getOtherEndpointId()+" "+bytes+" bytes at "
+						+String.format("%.1f",time==0 ? 0 : bytes*1e3/time)+" MB/s");
+				finish();
+				return;
+			}
+			endpoint.emit(contentsEvent, new String(Base64.encodeBase64(chunk),StandardCharsets.US_ASCII));
+			sent++;
+			bytes+=chunk.length;
+			position+=chunk.length;
+			remaining-=chunk.length;
+			long wait = TokenBucket.take(chunk.length,transferLimit,peerLimit);
+			if(wait>0) {
+				rateWait = Utils.getInstance().setTimeout(()->{
+					synchronized(this) {
+						rateWait=null;
+						pump();
+					}
+				}, wait);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Close the file. Called while holding this object's lock.
+	 */
+	private void finish() {
+		if(rateWait!=null) rateWait.cancel();
+		rateWait=null;
+		if(in==null) return;
+		in.close();
+		in=null;
+	}
+}
@@ -0,0 +1,47 @@
+package pb.transfer;
+
+/**
+ * The receiving side of the credit given to a {@link pb.transfer.ChunkSender}.
+ * It grants a window of chunks when the transfer starts, and grants more
+ * once half of the window has arrived, so that the sender is not left
+ * waiting while the grant is on its way.
+ * @author aaron
+ *
+ */
+public class CreditWindow {
+
+	private final int window;
+
+	private long received=0;
+
+	private long granted=0;
+
+	/**
+	 *
+	 * @param window chunks that may be in flight
+	 */
+	public CreditWindow(int window) {
+		this.window=Math.max(1,window);
+	}
+
+	/**
+	 * Start a transfer.
+	 * @return the first grant to send
+	 */
+	public synchronized long start() {
+		received=0;
+		granted=window;
+		return granted;
+	}
+
+	/**
+	 * Count a chunk that has arrived.
+	 * @return the grant to send, or -1 if none is due yet
+	 */
+	public synchronized long received() {
+		received++;
+		if(granted-received>window/2) return -1;
+		granted=received+window;
+		return granted;
+	}
+}
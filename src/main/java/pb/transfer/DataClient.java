@@ -0,0 +1,126 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import pb.utils.Utils;
+
+/**
+ * Receives a transfer offered by a {@link pb.transfer.DataServer}, writing
+ * the bytes straight from the socket to the file with
+ * {@link java.nio.channels.FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
+ * The bytes received so far can be read while it runs, and another thread
+ * can cancel it.
+ *
+ * @see {@link pb.transfer.DataServer}
+ * @author aaron
+ *
+ */
+public class DataClient {
+
+	/**
+	 * Most bytes written between updates of the bytes received.
+	 */
+	private static final long slice = 4*Utils.chunkSize;
+
+	private final String host;
+
+	private final int port;
+
+	private final long token;
+
+	private volatile SocketChannel channel=null;
+
+	private volatile long received=0;
+
+	private volatile boolean cancelled=false;
+
+	/**
+	 *
+	 * @param host of the data server
+	 * @param port of the data server
+	 * @param token that the data server gave the offer
+	 */
+	public DataClient(String host, int port, long token) {
+		this.host=host;
+		this.port=port;
+		this.token=token;
+	}
+
+	/**
+	 * Connect to a data server and receive the range offered for a token,
+	 * blocking until it has all been written.
+	 * @param host of the data server
+	 * @param port of the data server
+	 * @param token that the data server gave the offer
+	 * @param file to write to, it is not closed and must not end before the
+	 * position
+	 * @param position in the file of the first byte
+	 * @param length number of bytes offered
+	 * @return number of bytes written, which is the length unless the
+	 * connection closed early
+	 * @throws IOException if the connection or the file fails
+	 */
+	public static long receive(String host, int port, long token, FileChannel file,
+			long position, long length) throws IOException {
+		return new DataClient(host,port,token).receive(file,position,length);
+	}
+
+	/**
+	 * Connect and receive the range, blocking until it has all been written.
+	 * @param file to write to, it is not closed and must not end before the
+	 * position
+	 * @param position in the file of the first byte
+	 * @param length number of bytes offered
+	 * @return number of bytes written, which is the length unless the
+	 * connection closed early
+	 * @throws IOException if the connection or the file fails, or the
+	 * transfer was cancelled
+	 */
+	public long receive(FileChannel file, long position, long length) throws IOException {
+		try(SocketChannel channel = SocketChannel.open()) {
+			this.channel=channel;
+			if(cancelled) throw new IOException("data transfer cancelled");
+			channel.connect(new InetSocketAddress(host,port));
+			ByteBuffer header = ByteBuffer.allocate(8).putLong(token);
+			header.flip();
+			while(header.hasRemaining()) channel.write(header);
+			while(received<length) {
+				// a blocking channel only transfers nothing at the end of the stream
+				long read = file.transferFrom(channel,position+received,Math.min(slice,length-received));
+				if(read==0) break;
+				received+=read;
+			}
+			return received;
+		} finally {
+			channel=null;
+		}
+	}
+
+	/**
+	 *
+	 * @return bytes written so far
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Stop receiving, {@link #receive(FileChannel, long, long)} then throws
+	 * an IOException.
+	 */
+	public void cancel() {
+		cancelled=true;
+		SocketChannel c = channel;
+		if(c!=null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// the transfer fails either way
+			}
+		}
+	}
+}
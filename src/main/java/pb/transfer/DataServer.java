@@ -0,0 +1,210 @@
+package pb.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * Listens for bulk data connections, on a port of its own, for transfers that
+ * were offered over an endpoint. The endpoint's session is only used to agree
+ * on the transfer: the sender offers a range of a file with
+ * {@link #offer(FileChannel, long, long, TokenBucket...)} and tells the other side the port
+ * and the random token it was given, the other side connects with
+ * {@link pb.transfer.DataClient#receive(String, int, long, FileChannel, long, long)}
+ * and sends the token, and the range is then sent as raw bytes with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which the kernel can do without copying it into the JVM.
+ * <br/>
+ * The connections are served by an {@link pb.transfer.UploadEngine}, which
+ * sends many uploads at once, fairly and within their rate limits, see
+ * {@link pb.transfer.TokenBucket}. An offer that is not connected to within
+ * {@code pb.dataOfferTimeout} ms (default 30000) is dropped and its file
+ * closed.
+ *
+ * @see {@link pb.transfer.DataClient}
+ * @author aaron
+ *
+ */
+public class DataServer implements Runnable {
+	private static Logger log = Logger.getLogger(DataServer.class.getName());
+
+	/**
+	 * Time in ms that an offer waits to be connected to, and that a
+	 * connection has to send its token.
+	 */
+	private static final long offerTimeout = Long.parseLong(
+			Utils.getInstance().getProperty("pb.dataOfferTimeout","30000"));
+
+	/**
+	 * A range of a file waiting to be sent.
+	 */
+	static class Offer {
+		final FileChannel file;
+		/**
+		 * Closed when the offer is done with, the file or what holds it open.
+		 */
+		final Closeable release;
+		final long position;
+		final long length;
+		final TokenBucket[] limits;
+		Timeout timeout;
+
+		Offer(FileChannel file, Closeable release, long position, long length, TokenBucket[] limits) {
+			this.file=file;
+			this.release=release;
+			this.position=position;
+			this.length=length;
+			this.limits=limits;
+		}
+	}
+
+	private final ServerSocketChannel serverChannel;
+
+	private final Thread thread;
+
+	private final UploadEngine engine;
+
+	/**
+	 * Offers by their token.
+	 */
+	private final Map<Long,Offer> offers = new ConcurrentHashMap<>();
+
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Listen on a port chosen by the system.
+	 * @throws IOException if the server socket can't be created
+	 */
+	public DataServer() throws IOException {
+		serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+		engine = new UploadEngine(this,offerTimeout);
+		thread=Utils.getInstance().newThread(this,"DataServer");
+		thread.start();
+	}
+
+	/**
+	 *
+	 * @return the port that the server listens on
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Offer a range of a file to whoever connects with the returned token.
+	 * The file is closed once the range has been sent, or when the offer
+	 * times out.
+	 * @param file
+	 * @param position of the first byte to send
+	 * @param length number of bytes to send
+	 * @param limits rate limits of the transfer, any of which may be null
+	 * @return the token the other side must send
+	 */
+	public long offer(FileChannel file, long position, long length, TokenBucket... limits) {
+		return offer(new Offer(file,file,position,length,limits));
+	}
+
+	/**
+	 * Offer a range of a file opened by the {@link pb.transfer.MappedFileCache},
+	 * whose channel is shared with the file's other users. The file is let
+	 * go of once the range has been sent, or when the offer times out.
+	 * @param file
+	 * @param position of the first byte to send
+	 * @param length number of bytes to send
+	 * @param limits rate limits of the transfer, any of which may be null
+	 * @return the token the other side must send
+	 */
+	public long offer(MappedFileCache.SharedFile file, long position, long length, TokenBucket... limits) {
+		return offer(new Offer(file.getChannel(),file,position,length,limits));
+	}
+
+	private long offer(Offer offer) {
+		long token;
+		do {
+			token = random.nextLong();
+		} while(offers.putIfAbsent(token,offer)!=null);
+		final long key = token;
+		offer.timeout = Utils.getInstance().setTimeout(()->{
+			if(offers.remove(key,offer)) {
+				log.warning("data offer was not connected to in time");
+				close(offer.release);
+			}
+		}, offerTimeout);
+		return token;
+	}
+
+	/**
+	 * Take the offer for a token, it can only be taken once.
+	 * @param token
+	 * @return the offer, or null if there is none
+	 */
+	Offer take(long token) {
+		Offer offer = offers.remove(token);
+		if(offer!=null) offer.timeout.cancel();
+		return offer;
+	}
+
+	/**
+	 *
+	 * @return the uploads being sent or waiting to be sent, with their throughput
+	 */
+	public List<Upload> getUploads() {
+		return engine.getUploads();
+	}
+
+	/**
+	 * Close the server socket and drop the offers that are waiting. Transfers
+	 * that have started are allowed to finish.
+	 */
+	public void shutDown() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			log.warning("exception closing data server socket: "+e.getMessage());
+		}
+		thread.interrupt();
+		offers.forEach((token,offer)->{
+			if(offers.remove(token,offer)) {
+				offer.timeout.cancel();
+				close(offer.release);
+			}
+		});
+		engine.stopWhenIdle();
+	}
+
+	/**
+	 * Accept connections and give them to the upload engine.
+	 */
+	@Override
+	public void run() {
+		log.info("listening for data connections on port "+getPort());
+		while(!thread.isInterrupted() && serverChannel.isOpen()) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				engine.add(channel);
+			} catch (IOException e) {
+				if(serverChannel.isOpen()) log.warning("exception accepting data connection: "+e.getMessage());
+			}
+		}
+		log.info("DataServer terminating");
+	}
+
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.warning("exception closing data channel: "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * Which chunks of a download have been written, kept in a state file next
+ * to the file being downloaded so that a download that was cut short can be
+ * resumed, getting only the chunks that are missing. Chunks are
+ * {@link pb.utils.Utils#chunkSize} bytes, the last chunk of the file may be
+ * shorter.
+ * <br/>
+ * The state file is named after the file with {@value #suffix} added and
+ * holds the size of the file, or -1 if it is not known yet, the chunk size,
+ * the root hash of the content in hex, if it is known, see
+ * {@link pb.transfer.HashTree}, and a bitmap of the chunks written, which
+ * have been verified if the root is known. It is saved after every
+ * {@code pb.stateSaveBytes} bytes (default 16MB) have been written, once
+ * the file itself has been forced to disk, so that a chunk is never
+ * recorded before its bytes are safe. It is deleted when the download is
+ * complete.
+ * @author aaron
+ *
+ */
+public class DownloadState {
+	private static Logger log = Logger.getLogger(DownloadState.class.getName());
+
+	public static final String suffix = ".pbstate";
+
+	private static final long saveBytes = Long.parseLong(
+			Utils.getInstance().getProperty("pb.stateSaveBytes",String.valueOf(16*1024*1024)));
+
+	private final Path path;
+
+	private final FileChannel file;
+
+	private long size=-1;
+
+	/**
+	 * Root hash of the content in hex, "" if it is not known.
+	 */
+	private String root="";
+
+	private final BitSet written = new BitSet();
+
+	/**
+	 * Bytes written since the state was last saved.
+	 */
+	private long unsaved=0;
+
+	private DownloadState(Path path, FileChannel file) {
+		this.path=path;
+		this.file=file;
+	}
+
+	/**
+	 * Open the state of a download, or start a new one if there is no state
+	 * or it can't be read, emptying the file.
+	 * @param filename of the file being downloaded
+	 * @param file the file, opened for writing and not emptied
+	 * @return the state
+	 * @throws IOException if the file can't be emptied
+	 */
+	public static DownloadState open(String filename, FileChannel file) throws IOException {
+		DownloadState state = new DownloadState(Paths.get(filename+suffix),file);
+		if(!state.load()) file.truncate(0);
+		return state;
+	}
+
+	/**
+	 * Read the state file.
+	 * @return true if it was read, false if there is none or it is not usable
+	 */
+	private boolean load() {
+		if(!Files.exists(path)) return false;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+			long size = buffer.getLong();
+			int chunkSize = buffer.getInt();
+			if(chunkSize!=Utils.chunkSize) {
+				log.warning("state of "+path+" has chunks of "+chunkSize+" bytes, starting again");
+				return false;
+			}
+			byte[] root = new byte[buffer.getInt()];
+			buffer.get(root);
+			byte[] bitmap = new byte[buffer.remaining()];
+			buffer.get(bitmap);
+			BitSet chunks = BitSet.valueOf(bitmap);
+			long end = (long)chunks.length()*Utils.chunkSize;
+			if(size>=0) end=Math.min(end,size);
+			if(file.size()<end) {
+				log.warning("file is shorter than "+path+" says, starting again");
+				return false;
+			}
+			this.size=size;
+			this.root=new String(root,StandardCharsets.US_ASCII);
+			written.or(chunks);
+			log.info("resuming download, "+written.cardinality()+" chunks written, from "+path);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			log.warning("could not read "+path+", starting again: "+e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 *
+	 * @return the size of the file, or -1 if it is not known yet
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Set the size of the file, when it is learnt. If the state was for a
+	 * file of another size it is forgotten, and the file is emptied.
+	 * @param size
+	 * @return false if the state was forgotten
+	 * @throws IOException if the file can't be emptied
+	 */
+	public synchronized boolean setSize(long size) throws IOException {
+		if(this.size==size) return true;
+		boolean kept = this.size<0 && (written.length()<=chunks(size));
+		if(!kept) {
+			written.clear();
+			file.truncate(0);
+		}
+		this.size=size;
+		return kept;
+	}
+
+	/**
+	 * Set the root hash of the content, when it is known. If the state was
+	 * for other content, or content that was not verified, it is forgotten
+	 * and the file is emptied.
+	 * @param root in hex
+	 * @return false if the state was forgotten
+	 * @throws IOException if the file can't be emptied
+	 */
+	public synchronized boolean setRoot(String root) throws IOException {
+		if(this.root.equals(root)) return true;
+		boolean kept = written.isEmpty();
+		if(!kept) {
+			written.clear();
+			size=-1;
+			file.truncate(0);
+		}
+		this.root=root;
+		return kept;
+	}
+
+	/**
+	 * Record bytes written to the file. Only the chunks they cover fully, or
+	 * that they end at the end of the file, are counted.
+	 * @param position of the first byte
+	 * @param length number of bytes
+	 * @throws IOException if the state can't be saved
+	 */
+	public synchronized void written(long position, long length) throws IOException {
+		long end = position+length;
+		long first = (position+Utils.chunkSize-1)/Utils.chunkSize;
+		long last = (size>=0 && end>=size) ? chunks(size) : end/Utils.chunkSize;
+		if(last>first) written.set((int)first,(int)last);
+		unsaved+=length;
+		if(unsaved>=saveBytes) save();
+	}
+
+	/**
+	 *
+	 * @return whether all of the file has been written, false if its size is
+	 * not known
+	 */
+	public synchronized boolean isComplete() {
+		return size>=0 && written.nextClearBit(0)>=chunks(size);
+	}
+
+	/**
+	 * The ranges of the file that are missing.
+	 * @return ranges as {position,length}, if the size is not known the last
+	 * one goes on to {@link java.lang.Long#MAX_VALUE}
+	 */
+	public synchronized List<long[]> missing() {
+		List<long[]> ranges = new ArrayList<>();
+		long chunks = size>=0 ? chunks(size) : Long.MAX_VALUE;
+		int start = written.nextClearBit(0);
+		while(start<chunks) {
+			int end = written.nextSetBit(start);
+			long position = (long)start*Utils.chunkSize;
+			if(end<0) {
+				ranges.add(new long[] {position, size>=0 ? size-position : Long.MAX_VALUE-position});
+				break;
+			}
+			ranges.add(new long[] {position,(long)(end-start)*Utils.chunkSize});
+			start = written.nextClearBit(end);
+		}
+		return ranges;
+	}
+
+	/**
+	 * Force the file to disk and then save the state.
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		file.force(false);
+		byte[] bitmap = written.toByteArray();
+		byte[] root = this.root.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buffer = ByteBuffer.allocate(16+root.length+bitmap.length);
+		buffer.putLong(size).putInt(Utils.chunkSize).putInt(root.length).put(root).put(bitmap);
+		// written aside and moved into place, so a crash leaves the old state or the new
+		Path temp = Paths.get(path+".tmp");
+		Files.write(temp,buffer.array(),StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		Files.move(temp,path,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+		unsaved=0;
+	}
+
+	/**
+	 * Delete the state file, when the download is complete.
+	 */
+	public synchronized void delete() {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warning("could not delete "+path+": "+e.getMessage());
+		}
+	}
+
+	private static long chunks(long size) {
+		return (size+Utils.chunkSize-1)/Utils.chunkSize;
+	}
+}
@@ -0,0 +1,204 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+
+import pb.utils.Utils;
+
+/**
+ * A Merkle tree of SHA-256 hashes of the chunks of a file, chunks being
+ * {@link pb.utils.Utils#chunkSize} bytes as in a
+ * {@link pb.transfer.DownloadState}. The root hash names the content of the
+ * file, whatever the file is called, and once the hashes of the chunks have
+ * been checked against the root each chunk can be checked as it arrives.
+ * <br/>
+ * A leaf is the hash of a 0 byte followed by the chunk, and an inner node
+ * the hash of a 1 byte followed by its two children, a node without a
+ * sibling going up a level as it is. An empty file has one empty chunk.
+ * @author aaron
+ *
+ */
+public class HashTree {
+
+	public static final int hashSize = 32;
+
+	private final byte[][] leaves;
+
+	private final byte[] root;
+
+	/**
+	 *
+	 * @param leaves hashes of the chunks, at least one
+	 */
+	public HashTree(byte[][] leaves) {
+		this.leaves=leaves;
+		MessageDigest digest = digest();
+		byte[][] level = leaves;
+		while(level.length>1) {
+			byte[][] next = new byte[(level.length+1)/2][];
+			for(int i=0;i<next.length;i++) {
+				if(2*i+1==level.length) {
+					next[i]=level[2*i];
+				} else {
+					digest.update((byte)1);
+					digest.update(level[2*i]);
+					digest.update(level[2*i+1]);
+					next[i]=digest.digest();
+				}
+			}
+			level=next;
+		}
+		root=level[0];
+	}
+
+	/**
+	 * Hash a file.
+	 * @param file
+	 * @return its tree
+	 * @throws IOException if the file can't be read
+	 */
+	public static HashTree of(FileChannel file) throws IOException {
+		long size = file.size();
+		byte[][] leaves = new byte[chunks(size)][];
+		MessageDigest digest = digest();
+		ByteBuffer buffer = BufferPool.getInstance().take();
+		try {
+			for(int i=0;i<leaves.length;i++) {
+				leaves[i]=leaf(digest,read(file,(long)i*Utils.chunkSize,buffer));
+			}
+		} finally {
+			BufferPool.getInstance().give(buffer);
+		}
+		return new HashTree(leaves);
+	}
+
+	/**
+	 *
+	 * @param bytes the hashes of the chunks, one after another, as from
+	 * {@link #getLeaves()}
+	 * @return the tree
+	 * @throws IllegalArgumentException if the bytes are not whole hashes
+	 */
+	public static HashTree fromLeaves(byte[] bytes) {
+		if(bytes.length==0 || bytes.length%hashSize!=0) {
+			throw new IllegalArgumentException("not a list of hashes: "+bytes.length+" bytes");
+		}
+		byte[][] leaves = new byte[bytes.length/hashSize][];
+		for(int i=0;i<leaves.length;i++) {
+			leaves[i]=Arrays.copyOfRange(bytes,i*hashSize,(i+1)*hashSize);
+		}
+		return new HashTree(leaves);
+	}
+
+	/**
+	 *
+	 * @param first chunk
+	 * @param count most chunks
+	 * @return the hashes of the chunks, one after another
+	 */
+	public byte[] getLeaves(int first, int count) {
+		int end = Math.min(leaves.length,first+count);
+		ByteBuffer bytes = ByteBuffer.allocate(Math.max(0,end-first)*hashSize);
+		for(int i=first;i<end;i++) bytes.put(leaves[i]);
+		return bytes.array();
+	}
+
+	/**
+	 *
+	 * @return the hashes of all of the chunks, one after another
+	 */
+	public byte[] getLeaves() {
+		return getLeaves(0,leaves.length);
+	}
+
+	public int getChunks() {
+		return leaves.length;
+	}
+
+	public byte[] getRoot() {
+		return root.clone();
+	}
+
+	/**
+	 *
+	 * @return the root hash in hex, which names the content
+	 */
+	public String getRootHex() {
+		return Hex.encodeHexString(root);
+	}
+
+	/**
+	 * Check the chunks of a range of a file.
+	 * @param file
+	 * @param position of the range, at the start of a chunk
+	 * @param length of the range
+	 * @return the ranges of the chunks that are wrong, as {position,length}
+	 * with neighbouring chunks together, empty if all are right
+	 * @throws IOException if the file can't be read
+	 */
+	public List<long[]> verify(FileChannel file, long position, long length) throws IOException {
+		List<long[]> bad = new ArrayList<>();
+		MessageDigest digest = digest();
+		ByteBuffer buffer = BufferPool.getInstance().take();
+		try {
+			long end = position+length;
+			for(long start=position;start<end;start+=Utils.chunkSize) {
+				int chunk = (int)(start/Utils.chunkSize);
+				if(chunk<leaves.length &&
+						MessageDigest.isEqual(leaves[chunk],leaf(digest,read(file,start,buffer)))) continue;
+				long chunkLength = Math.min(Utils.chunkSize,end-start);
+				long[] last = bad.isEmpty() ? null : bad.get(bad.size()-1);
+				if(last!=null && last[0]+last[1]==start) last[1]+=chunkLength;
+				else bad.add(new long[] {start,chunkLength});
+			}
+		} finally {
+			BufferPool.getInstance().give(buffer);
+		}
+		return bad;
+	}
+
+	/**
+	 *
+	 * @param size of a file
+	 * @return how many chunks, and leaves, it has
+	 */
+	public static int chunks(long size) {
+		return (int)Math.max(1,(size+Utils.chunkSize-1)/Utils.chunkSize);
+	}
+
+	/**
+	 * Read a chunk, or the end of the file, into the buffer.
+	 */
+	private static ByteBuffer read(FileChannel file, long position, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while(buffer.hasRemaining()) {
+			int read = file.read(buffer,position+buffer.position());
+			if(read<0) break;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] leaf(MessageDigest digest, ByteBuffer chunk) {
+		digest.update((byte)0);
+		digest.update(chunk);
+		return digest.digest();
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
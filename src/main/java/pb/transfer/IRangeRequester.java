@@ -0,0 +1,27 @@
+package pb.transfer;
+
+/**
+ * Asks a peer for a range of a file, or for the hashes of its chunks, used
+ * by a {@link pb.transfer.SwarmDownload}. The peer's answer is given to
+ * {@link pb.transfer.SwarmDownload#offered(SwarmDownload.Source, int, long, long, long)},
+ * {@link pb.transfer.SwarmDownload#hashes(SwarmDownload.Source, HashTree)}
+ * or {@link pb.transfer.SwarmDownload#failed(SwarmDownload.Source, String)}.
+ * @author aaron
+ *
+ */
+public interface IRangeRequester {
+
+	/**
+	 * Ask for a range of the file.
+	 * @param position of the first byte
+	 * @param length number of bytes, the range may end sooner if the file does
+	 */
+	public void request(long position, long length);
+
+	/**
+	 * Ask for the hashes of all of the chunks of the file, see
+	 * {@link pb.transfer.HashTree}. Only asked for when the root hash of the
+	 * content is known.
+	 */
+	public void requestHashes();
+}
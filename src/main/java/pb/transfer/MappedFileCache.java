@@ -0,0 +1,330 @@
+package pb.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * Files being sent to peers, memory-mapped in regions of
+ * {@code pb.mapRegionSize} bytes (default 64MB), so that a file sent to
+ * many peers at once is read straight from the page cache, without opening
+ * it for every request or reading it through a buffer. A file is opened once
+ * while it is being sent or has regions mapped, and is shared by everyone
+ * sending it, see {@link #open(String)}.
+ * <br/>
+ * When more than {@code pb.mapBudget} bytes (default 1GB) of address space
+ * are mapped the least recently read regions are unmapped, except those
+ * being read from, so the budget can be exceeded while they are. The
+ * garbage collector would only unmap a region once it is no longer
+ * reachable, so they are unmapped at once with the JDK's
+ * {@code sun.misc.Unsafe.invokeCleaner} where it is available.
+ * <br/>
+ * A file must not be shortened while it is mapped, a read of the part that
+ * was cut off fails.
+ * @author aaron
+ *
+ */
+public class MappedFileCache {
+	private static Logger log = Logger.getLogger(MappedFileCache.class.getName());
+
+	private static MappedFileCache cache=null;
+
+	private static final long budget = Long.parseLong(
+			Utils.getInstance().getProperty("pb.mapBudget",String.valueOf(1024L*1024*1024)));
+
+	/**
+	 * Whole chunks, and no more than a mapping can hold.
+	 */
+	private static final long regionSize = Math.max(Utils.chunkSize,
+			Math.min(Integer.MAX_VALUE,Long.parseLong(
+					Utils.getInstance().getProperty("pb.mapRegionSize",String.valueOf(64*1024*1024))))
+			/Utils.chunkSize*Utils.chunkSize);
+
+	private static final Object unsafe;
+
+	private static final Method invokeCleaner;
+
+	static {
+		Object theUnsafe=null;
+		Method cleaner=null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe=field.get(null);
+			cleaner=unsafeClass.getMethod("invokeCleaner",ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.info("mapped regions will be unmapped by the garbage collector: "+e);
+		}
+		unsafe=theUnsafe;
+		invokeCleaner=cleaner;
+	}
+
+	/**
+	 * An open file and its mapped regions.
+	 */
+	private static class Entry {
+		final Path path;
+		final FileChannel channel;
+		final Map<Long,Region> regions = new HashMap<>();
+		/**
+		 * Open {@link SharedFile}s of the file.
+		 */
+		int users=0;
+
+		Entry(Path path, FileChannel channel) {
+			this.path=path;
+			this.channel=channel;
+		}
+	}
+
+	/**
+	 * A mapped region of a file.
+	 */
+	private static class Region {
+		final Entry entry;
+		final long index;
+		final long start;
+		final MappedByteBuffer buffer;
+		/**
+		 * Reads in progress, the region is not unmapped until they are done.
+		 */
+		int readers=0;
+		boolean dropped=false;
+
+		Region(Entry entry, long index, long start, MappedByteBuffer buffer) {
+			this.entry=entry;
+			this.index=index;
+			this.start=start;
+			this.buffer=buffer;
+		}
+
+		long end() {
+			return start+buffer.capacity();
+		}
+	}
+
+	/**
+	 * A user's hold on a file, which keeps it open until it is closed.
+	 */
+	public class SharedFile implements Closeable {
+		private final Entry entry;
+
+		private boolean closed=false;
+
+		private SharedFile(Entry entry) {
+			this.entry=entry;
+		}
+
+		/**
+		 *
+		 * @return the file's channel, shared by all of its users, so only
+		 * reads and transfers that give their position may be used, and it
+		 * must not be closed
+		 */
+		public FileChannel getChannel() {
+			return entry.channel;
+		}
+
+		public long size() throws IOException {
+			return entry.channel.size();
+		}
+
+		/**
+		 * Read from the file's mapped regions.
+		 * @param position of the first byte
+		 * @param length most bytes to read
+		 * @return the bytes, fewer than length if the file ends first
+		 * @throws IOException if the file can't be mapped, or was shortened
+		 */
+		public byte[] read(long position, int length) throws IOException {
+			byte[] bytes = new byte[length];
+			int done=0;
+			while(done<length) {
+				Region region = acquire(entry,position+done);
+				if(region==null) break; // the end of the file
+				try {
+					ByteBuffer slice = region.buffer.duplicate();
+					slice.position((int)(position+done-region.start));
+					int count = Math.min(length-done,slice.remaining());
+					slice.get(bytes,done,count);
+					done+=count;
+				} catch (InternalError e) {
+					// how a read of a mapping past the end of the file fails
+					drop(entry);
+					throw new IOException("file was shortened while mapped: "+entry.path);
+				} finally {
+					release(region);
+				}
+			}
+			return done==length ? bytes : Arrays.copyOf(bytes,done);
+		}
+
+		/**
+		 * Let go of the file, it is closed once it has no users and no
+		 * mapped regions.
+		 */
+		@Override
+		public void close() {
+			synchronized(MappedFileCache.this) {
+				if(closed) return;
+				closed=true;
+				entry.users--;
+				closeIfUnused(entry);
+			}
+		}
+	}
+
+	/**
+	 * Files by their absolute path.
+	 */
+	private final Map<Path,Entry> files = new HashMap<>();
+
+	/**
+	 * Mapped regions, least recently read first.
+	 */
+	private final LinkedHashSet<Region> regions = new LinkedHashSet<>();
+
+	/**
+	 * Bytes of address space mapped.
+	 */
+	private long mapped=0;
+
+	public static synchronized MappedFileCache getInstance() {
+		if(cache==null) cache=new MappedFileCache();
+		return cache;
+	}
+
+	/**
+	 * Open a file to send, or share the file if it is already open.
+	 * @param filename
+	 * @return a hold on the file, which must be closed when done with
+	 * @throws IOException if the file can't be opened
+	 */
+	public synchronized SharedFile open(String filename) throws IOException {
+		Path path = Paths.get(filename).toAbsolutePath().normalize();
+		Entry entry = files.get(path);
+		if(entry==null) {
+			entry = new Entry(path,FileChannel.open(path,StandardOpenOption.READ));
+			files.put(path,entry);
+		}
+		entry.users++;
+		return new SharedFile(entry);
+	}
+
+	/**
+	 * Find the region of a file that a byte is in, mapping it if it is not
+	 * mapped, and hold it for reading.
+	 * @param entry
+	 * @param position of the byte
+	 * @return the region, or null if the byte is past the end of the file
+	 * @throws IOException if the region can't be mapped
+	 */
+	private synchronized Region acquire(Entry entry, long position) throws IOException {
+		long index = position/regionSize;
+		Region region = entry.regions.get(index);
+		if(region!=null && position>=region.end()) {
+			// the last region of the file, which may have grown since
+			if(entry.channel.size()<=region.end()) return null;
+			drop(region);
+			region=null;
+		}
+		if(region==null) {
+			long start = index*regionSize;
+			long size = entry.channel.size();
+			if(position>=size) return null;
+			region = new Region(entry,index,start,
+					entry.channel.map(FileChannel.MapMode.READ_ONLY,start,Math.min(regionSize,size-start)));
+			entry.regions.put(index,region);
+			mapped+=region.buffer.capacity();
+		} else {
+			regions.remove(region);
+		}
+		regions.add(region);
+		region.readers++;
+		evict();
+		return region;
+	}
+
+	/**
+	 * Done reading from a region.
+	 * @param region
+	 */
+	private synchronized void release(Region region) {
+		region.readers--;
+		if(region.dropped && region.readers==0) unmap(region.buffer);
+	}
+
+	/**
+	 * Unmap the least recently read regions until the budget is met, or
+	 * only regions being read from are left.
+	 */
+	private void evict() {
+		Iterator<Region> lru = regions.iterator();
+		while(mapped>budget && lru.hasNext()) {
+			Region region = lru.next();
+			if(region.readers>0) continue;
+			lru.remove();
+			forget(region);
+		}
+	}
+
+	/**
+	 * Unmap all of a file's regions, once they are not being read from.
+	 * @param entry
+	 */
+	private synchronized void drop(Entry entry) {
+		for(Region region : entry.regions.values().toArray(new Region[0])) drop(region);
+	}
+
+	private void drop(Region region) {
+		regions.remove(region);
+		forget(region);
+	}
+
+	/**
+	 * Forget a region that is no longer in the list of mapped regions, and
+	 * unmap it if it is not being read from.
+	 */
+	private void forget(Region region) {
+		region.dropped=true;
+		region.entry.regions.remove(region.index);
+		mapped-=region.buffer.capacity();
+		if(region.readers==0) unmap(region.buffer);
+		closeIfUnused(region.entry);
+	}
+
+	private void closeIfUnused(Entry entry) {
+		if(entry.users>0 || !entry.regions.isEmpty()) return;
+		files.remove(entry.path,entry);
+		try {
+			entry.channel.close();
+		} catch (IOException e) {
+			log.warning("exception closing file: "+e.getMessage());
+		}
+	}
+
+	private static void unmap(MappedByteBuffer buffer) {
+		if(invokeCleaner==null) return;
+		try {
+			invokeCleaner.invoke(unsafe,buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.warning("could not unmap region: "+e);
+		}
+	}
+}
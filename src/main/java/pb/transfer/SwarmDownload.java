@@ -0,0 +1,696 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import pb.utils.Timeout;
+import pb.utils.Utils;
+
+/**
+ * Downloads a file from several peers at once. The file is split into pieces
+ * of {@code pb.swarmPieceSize} bytes (default 4MB) and each source peer is
+ * asked for one piece at a time, which it sends on a data connection, see
+ * {@link pb.transfer.DataClient}. A source asks for the next piece as soon as
+ * its last one has arrived, so faster sources fetch more of the file and the
+ * download runs at the sum of the sources' upload bandwidth.
+ * <br/>
+ * The size of the file is learnt from the first offer, until then only the
+ * first piece is asked for. A source that fails, or that sends nothing for
+ * {@code pb.swarmStallTimeout} ms (default 10000), is dropped and its piece
+ * is given to another source. Once every piece has been given out, a source
+ * with nothing to do also fetches the piece that is expected to take the
+ * longest, and whichever copy arrives first is kept, so one slow source can
+ * not hold up the end of the download. The download fails if no bytes arrive
+ * for {@code pb.swarmTimeout} ms (default 60000).
+ * <br/>
+ * When the root hash of the content is known the hashes of the chunks are
+ * asked for from one of the sources, see {@link pb.transfer.HashTree}, and
+ * once they match the root each piece is checked as it arrives. The chunks
+ * that are wrong are fetched again and the source that sent them is
+ * dropped. Pieces that arrive before the hashes are checked when they come.
+ * <br/>
+ * A download can be given a {@link pb.transfer.DownloadState}, and then only
+ * the ranges that it says are missing are fetched, and the pieces written
+ * are recorded in it as they arrive, including the whole chunks of a piece
+ * whose source failed part of the way through.
+ * <br/>
+ * Sources are added as their sessions start, see
+ * {@link #addSource(Source)}, and the offers and errors they
+ * answer with are passed on to {@link #offered(Source, int, long, long, long)}
+ * and {@link #failed(Source, String)}.
+ * @author aaron
+ *
+ */
+public class SwarmDownload {
+	private static Logger log = Logger.getLogger(SwarmDownload.class.getName());
+
+	private static final long pieceSize = Long.parseLong(
+			Utils.getInstance().getProperty("pb.swarmPieceSize",String.valueOf(4*1024*1024)));
+
+	private static final long stallTimeout = Long.parseLong(
+			Utils.getInstance().getProperty("pb.swarmStallTimeout","10000"));
+
+	private static final long timeout = Long.parseLong(
+			Utils.getInstance().getProperty("pb.swarmTimeout","60000"));
+
+	/**
+	 * Time in ms between checks for stalled sources.
+	 */
+	private static final long checkInterval = 1000;
+
+	/**
+	 * A peer that the file is downloaded from.
+	 */
+	public static class Source {
+		private final String host;
+		private final IRangeRequester requester;
+
+		/**
+		 * The piece the source is fetching, or null if it has nothing to do.
+		 */
+		private Assignment assignment=null;
+
+		private long bytes=0;
+
+		private boolean dropped=false;
+
+		/**
+		 *
+		 * @param host of the peer, where its data server is
+		 * @param requester that asks the peer for ranges
+		 */
+		public Source(String host, IRangeRequester requester) {
+			this.host=host;
+			this.requester=requester;
+		}
+
+		@Override
+		public String toString() {
+			return host+" ("+bytes+" bytes)";
+		}
+	}
+
+	/**
+	 * A piece being fetched from a source.
+	 */
+	private static class Assignment {
+		final Piece piece;
+		final Source source;
+		DataClient client=null;
+		Thread thread=null;
+		long progress=0;
+		long progressed=System.currentTimeMillis();
+		final long requested=System.currentTimeMillis();
+		boolean cancelled=false;
+		/**
+		 * Set once all of the piece has arrived, while its other sources are
+		 * being stopped, so that no more are given it.
+		 */
+		boolean arrived=false;
+
+		Assignment(Piece piece, Source source) {
+			this.piece=piece;
+			this.source=source;
+		}
+
+		/**
+		 * @return bytes per ms so far, at least a little so it can be divided by
+		 */
+		double rate() {
+			return Math.max(1e-3,(double)progress/Math.max(1,System.currentTimeMillis()-requested));
+		}
+	}
+
+	private static class Piece {
+		long position;
+		long length;
+		boolean done=false;
+		final List<Assignment> assignments = new ArrayList<>();
+
+		Piece(long position, long length) {
+			this.position=position;
+			this.length=length;
+		}
+	}
+
+	private final String filename;
+
+	private final FileChannel out;
+
+	/**
+	 * Chunks written, may be null.
+	 */
+	private final DownloadState state;
+
+	/**
+	 * Root hash of the content in hex, or null if it is not known and the
+	 * pieces are not checked.
+	 */
+	private final String root;
+
+	/**
+	 * Hashes of the chunks, once they have arrived and matched the root.
+	 */
+	private volatile HashTree tree=null;
+
+	/**
+	 * The source asked for the hashes, and when, null if none is.
+	 */
+	private Source hashSource=null;
+
+	private long hashesRequested=0;
+
+	/**
+	 * Pieces that arrived before the hashes.
+	 */
+	private final List<Piece> unverified = new ArrayList<>();
+
+	private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+	private final List<Source> sources = new ArrayList<>();
+
+	/**
+	 * The pieces, only the first until the size is known.
+	 */
+	private final List<Piece> pieces = new ArrayList<>();
+
+	private long size=-1;
+
+	private int piecesDone=0;
+
+	private long lastProgress=System.currentTimeMillis();
+
+	private Timeout checker;
+
+	/**
+	 *
+	 * @param filename the name of the file, for logging
+	 * @param out the file to write, closed when the download completes or fails
+	 */
+	public SwarmDownload(String filename, FileChannel out) {
+		this(filename,out,null);
+	}
+
+	/**
+	 *
+	 * @param filename the name of the file, for logging
+	 * @param out the file to write, closed when the download completes or fails
+	 * @param state of the download to resume and keep up to date, or null
+	 */
+	public SwarmDownload(String filename, FileChannel out, DownloadState state) {
+		this(filename,out,state,null);
+	}
+
+	/**
+	 *
+	 * @param filename the name of the file, for logging
+	 * @param out the file to write, and to read to check the pieces if the
+	 * root is given, closed when the download completes or fails
+	 * @param state of the download to resume and keep up to date, or null
+	 * @param root hash of the content in hex, or null if it is not known
+	 */
+	public SwarmDownload(String filename, FileChannel out, DownloadState state, String root) {
+		this.filename=filename;
+		this.out=out;
+		this.state=state;
+		this.root=root;
+		if(state!=null && root!=null) {
+			try {
+				if(!state.setRoot(root)) log.info("the state of "+filename+" was of other content, starting again");
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+		}
+		if(state!=null && state.isComplete()) {
+			// all that was left to do was deleting the state
+			size=state.getSize();
+			complete();
+			return;
+		}
+		long[] first = state!=null ? state.missing().get(0) : new long[] {0,pieceSize};
+		pieces.add(new Piece(first[0],Math.min(pieceSize,first[1])));
+		checker = Utils.getInstance().setTimeout(this::check, checkInterval);
+	}
+
+	/**
+	 *
+	 * @return completed with the size of the file, or exceptionally if the
+	 * download failed
+	 */
+	public CompletableFuture<Long> getResult() {
+		return result;
+	}
+
+	/**
+	 * Add a peer that has the file, and give it a piece to fetch. Its
+	 * answers must be passed on from then on.
+	 * @param source
+	 */
+	public synchronized void addSource(Source source) {
+		if(result.isDone() || source.dropped) return;
+		sources.add(source);
+		requestHashes();
+		assign(source);
+	}
+
+	/**
+	 * A source offered the range it was asked for.
+	 * @param source
+	 * @param port of its data server
+	 * @param token of the offer
+	 * @param length of the range offered
+	 * @param fileSize size of the whole file
+	 */
+	public synchronized void offered(Source source, int port, long token, long length, long fileSize) {
+		Assignment assignment = source.assignment;
+		if(assignment==null || assignment.client!=null || source.dropped) return;
+		if(size<0) {
+			setSize(fileSize);
+			if(result.isDone()) return;
+			if(source.assignment!=assignment) {
+				// the piece is no longer wanted
+				assign(source);
+				return;
+			}
+		} else if(fileSize!=size) {
+			drop(source,"has a different size of the file: "+fileSize);
+			return;
+		}
+		if(tree!=null && tree.getChunks()!=HashTree.chunks(fileSize)) {
+			drop(source,"has a file of a size that does not match the hashes: "+fileSize);
+			return;
+		}
+		if(length<assignment.piece.length) {
+			drop(source,"offered "+length+" bytes for a piece of "+assignment.piece.length);
+			return;
+		}
+		DataClient client = new DataClient(source.host,port,token);
+		assignment.client=client;
+		assignment.progressed=System.currentTimeMillis();
+		assignment.thread=Utils.getInstance().newThread(()->{receive(assignment,client);},"DataReceiver");
+		assignment.thread.start();
+	}
+
+	/**
+	 * The source that was asked for the hashes of the chunks sent them.
+	 * @param source
+	 * @param hashes
+	 */
+	public synchronized void hashes(Source source, HashTree hashes) {
+		if(source!=hashSource || tree!=null || result.isDone()) return;
+		hashSource=null;
+		if(!hashes.getRootHex().equals(root)) {
+			drop(source,"sent hashes that do not match the content");
+			return;
+		}
+		if(size>=0 && hashes.getChunks()!=HashTree.chunks(size)) {
+			drop(source,"sent hashes of a file of another size");
+			return;
+		}
+		tree=hashes;
+		for(Piece piece : unverified) {
+			try {
+				accept(piece,tree.verify(out,piece.position,piece.length),null);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+		}
+		unverified.clear();
+		if(isFinished()) {
+			complete();
+			return;
+		}
+		for(Source other : new ArrayList<>(sources)) {
+			if(other.assignment==null) assign(other);
+		}
+	}
+
+	/**
+	 * A source could not give what it was asked for, or its session ended.
+	 * @param source
+	 * @param reason
+	 */
+	public synchronized void failed(Source source, String reason) {
+		drop(source,reason);
+	}
+
+	/**
+	 * Receive a piece on a data connection, on its own thread, and check it
+	 * if the hashes have arrived.
+	 */
+	private void receive(Assignment assignment, DataClient client) {
+		Piece piece = assignment.piece;
+		String error=null;
+		try {
+			long received = client.receive(out,piece.position,piece.length);
+			if(received<piece.length) error="data connection closed after "+received+" bytes";
+		} catch (IOException e) {
+			error=e.getMessage();
+		}
+		List<long[]> bad=null;
+		if(error==null) {
+			// other sources of the piece must have stopped writing it before
+			// it is checked, now or once the hashes have arrived
+			List<Thread> others = new ArrayList<>();
+			synchronized(this) {
+				if(!assignment.cancelled) {
+					assignment.arrived=true;
+					others=stopOthers(assignment);
+				}
+			}
+			for(Thread other : others) {
+				try {
+					other.join();
+				} catch (InterruptedException e) {
+					error="interrupted";
+				}
+			}
+			HashTree tree=this.tree;
+			try {
+				if(error==null && tree!=null) bad=tree.verify(out,piece.position,piece.length);
+			} catch (IOException e) {
+				error=e.getMessage();
+			}
+		}
+		synchronized(this) {
+			assignment.source.bytes+=client.getReceived();
+			if(assignment.cancelled) {
+				// another source sent the piece first
+				finishAssignment(assignment);
+				if(!assignment.source.dropped) assign(assignment.source);
+			} else if(error!=null) {
+				drop(assignment.source,error);
+			} else {
+				pieceDone(assignment,bad);
+			}
+		}
+	}
+
+	/**
+	 * Make the pieces of the file once its size is known, of the ranges that
+	 * are missing. Called while holding this object's lock.
+	 */
+	private void setSize(long fileSize) {
+		size=fileSize;
+		List<long[]> ranges = new ArrayList<>();
+		try {
+			if(state!=null) {
+				if(!state.setSize(size)) log.info("the state of "+filename+" was of another file, starting again");
+				ranges=state.missing();
+			} else {
+				ranges.add(new long[] {0,size});
+			}
+			// pieces can only be written up to the end of the file, so it
+			// must be as long as it will be from the start
+			if(size>0 && out.size()<size) out.write(ByteBuffer.allocate(1),size-1);
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+		List<Piece> fetching = new ArrayList<>();
+		for(Piece piece : pieces) {
+			if(!piece.assignments.isEmpty()) fetching.add(piece);
+		}
+		pieces.clear();
+		for(long[] range : ranges) {
+			long end = range[0]+range[1];
+			for(long position=range[0];position<end;position+=pieceSize) {
+				pieces.add(new Piece(position,Math.min(pieceSize,end-position)));
+			}
+		}
+		// a piece asked for before the size was known is kept if it is
+		// still wanted, with the length it has now
+		for(Piece piece : fetching) {
+			int i;
+			for(i=0;i<pieces.size() && pieces.get(i).position!=piece.position;i++);
+			if(i<pieces.size()) {
+				piece.length=pieces.get(i).length;
+				pieces.set(i,piece);
+			} else {
+				for(Assignment assignment : new ArrayList<>(piece.assignments)) finishAssignment(assignment);
+			}
+		}
+		if(pieces.isEmpty()) {
+			complete();
+			return;
+		}
+		for(Source source : new ArrayList<>(sources)) {
+			if(source.assignment==null) assign(source);
+		}
+	}
+
+	/**
+	 * Give a source something to fetch, if there is anything. Called while
+	 * holding this object's lock.
+	 */
+	private void assign(Source source) {
+		if(result.isDone() || source.assignment!=null || source.dropped) return;
+		Piece next=null;
+		for(Piece piece : pieces) {
+			if(!piece.done && piece.assignments.isEmpty()) {
+				next=piece;
+				break;
+			}
+		}
+		if(next==null && size>=0) {
+			// all pieces are being fetched, help with the one that will take longest
+			double longest=0;
+			for(Piece piece : pieces) {
+				if(piece.done || piece.assignments.size()!=1) continue;
+				Assignment other = piece.assignments.get(0);
+				if(other.client==null || other.arrived) continue;
+				double remaining = (piece.length-other.client.getReceived())/other.rate();
+				if(remaining>longest) {
+					longest=remaining;
+					next=piece;
+				}
+			}
+		}
+		if(next==null) return; // nothing to do until the size is known or a source fails
+		Assignment assignment = new Assignment(next,source);
+		next.assignments.add(assignment);
+		source.assignment=assignment;
+		source.requester.request(next.position,next.length);
+	}
+
+	/**
+	 * A piece has arrived from a source. Called while holding this object's
+	 * lock.
+	 * @param assignment
+	 * @param bad chunks that are wrong, or null if it has not been checked
+	 */
+	private void pieceDone(Assignment assignment, List<long[]> bad) {
+		Piece piece = assignment.piece;
+		finishAssignment(assignment);
+		if(!piece.done) {
+			piece.done=true;
+			piecesDone++;
+			stopOthers(assignment);
+			try {
+				if(bad==null && tree!=null) bad=tree.verify(out,piece.position,piece.length);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+			if(bad!=null) accept(piece,bad,assignment.source);
+			else if(root!=null) unverified.add(piece);
+			else written(piece.position,piece.length);
+			if(isFinished()) {
+				complete();
+				return;
+			}
+		}
+		for(Source source : new ArrayList<>(sources)) {
+			if(source.assignment==null) assign(source);
+		}
+	}
+
+	/**
+	 * Stop the other sources of a piece, when one has sent it. Called while
+	 * holding this object's lock.
+	 * @return the threads of those that were receiving it
+	 */
+	private List<Thread> stopOthers(Assignment assignment) {
+		List<Thread> threads = new ArrayList<>();
+		for(Assignment other : new ArrayList<>(assignment.piece.assignments)) {
+			if(other==assignment) continue;
+			other.cancelled=true;
+			if(other.client!=null) {
+				other.client.cancel();
+				threads.add(other.thread);
+			} else {
+				finishAssignment(other); // not offered yet, the offer will be ignored
+			}
+		}
+		return threads;
+	}
+
+	/**
+	 * Record the chunks of a piece that have been checked, and make pieces
+	 * of the chunks that are wrong, to fetch them again. Called while holding
+	 * this object's lock.
+	 * @param piece
+	 * @param bad chunks that are wrong
+	 * @param source that sent the piece, dropped if any chunks are wrong, or
+	 * null if not known
+	 */
+	private void accept(Piece piece, List<long[]> bad, Source source) {
+		long position = piece.position;
+		for(long[] range : bad) {
+			written(position,range[0]-position);
+			long end = range[0]+range[1];
+			for(long start=range[0];start<end;start+=pieceSize) {
+				pieces.add(new Piece(start,Math.min(pieceSize,end-start)));
+			}
+			position=end;
+		}
+		written(position,piece.position+piece.length-position);
+		if(!bad.isEmpty()) {
+			log.warning(bad.size()+" ranges of "+filename+" were wrong, fetching them again");
+			if(source!=null) drop(source,"sent chunks that are wrong");
+		}
+	}
+
+	/**
+	 * Called while holding this object's lock.
+	 * @return whether all pieces have arrived and been checked
+	 */
+	private boolean isFinished() {
+		return size>=0 && piecesDone==pieces.size() && unverified.isEmpty() && (root==null || tree!=null);
+	}
+
+	/**
+	 * Ask a source for the hashes of the chunks if they are needed and no
+	 * source has been asked. Called while holding this object's lock.
+	 */
+	private void requestHashes() {
+		if(root==null || tree!=null || hashSource!=null || sources.isEmpty()) return;
+		hashSource=sources.get(0);
+		hashesRequested=System.currentTimeMillis();
+		hashSource.requester.requestHashes();
+	}
+
+	private void finishAssignment(Assignment assignment) {
+		assignment.piece.assignments.remove(assignment);
+		if(assignment.source.assignment==assignment) assignment.source.assignment=null;
+	}
+
+	/**
+	 * Drop a source, giving its piece to another. Called while holding this
+	 * object's lock.
+	 */
+	private void drop(Source source, String reason) {
+		if(source.dropped) return;
+		source.dropped=true;
+		if(result.isDone()) return; // the sessions end after the download
+		sources.remove(source);
+		log.warning("dropping source "+source.host+" of "+filename+": "+reason);
+		if(source==hashSource) {
+			hashSource=null;
+			requestHashes();
+		}
+		Assignment assignment = source.assignment;
+		if(assignment!=null) {
+			assignment.cancelled=true;
+			if(assignment.client!=null) assignment.client.cancel();
+			finishAssignment(assignment);
+			keepProgress(assignment);
+		}
+		for(Source other : new ArrayList<>(sources)) {
+			if(other.assignment==null) assign(other);
+		}
+	}
+
+	/**
+	 * Keep the whole chunks that a failed source wrote of its piece, leaving
+	 * the rest of the piece to fetch. Called while holding this object's lock.
+	 */
+	private void keepProgress(Assignment assignment) {
+		Piece piece = assignment.piece;
+		if(assignment.client==null || piece.done || !piece.assignments.isEmpty()) return;
+		long kept = assignment.client.getReceived()/Utils.chunkSize*Utils.chunkSize;
+		if(kept==0 || kept>=piece.length) return;
+		if(root!=null) {
+			// only chunks that have been checked are kept
+			try {
+				if(tree==null || !tree.verify(out,piece.position,kept).isEmpty()) return;
+			} catch (IOException e) {
+				return;
+			}
+		}
+		written(piece.position,kept);
+		piece.position+=kept;
+		piece.length-=kept;
+	}
+
+	private void written(long position, long length) {
+		if(state==null) return;
+		try {
+			state.written(position,length);
+		} catch (IOException e) {
+			log.warning("could not save the state of "+filename+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Drop sources that have stalled, and fail the download if nothing has
+	 * arrived for too long.
+	 */
+	private synchronized void check() {
+		if(result.isDone()) return;
+		long now = System.currentTimeMillis();
+		if(hashSource!=null && now-hashesRequested>stallTimeout) {
+			drop(hashSource,"did not send the hashes");
+		}
+		for(Source source : new ArrayList<>(sources)) {
+			Assignment assignment = source.assignment;
+			if(assignment==null) continue;
+			long progress = assignment.client==null ? 0 : assignment.client.getReceived();
+			if(progress>assignment.progress) {
+				assignment.progress=progress;
+				assignment.progressed=now;
+				lastProgress=now;
+			} else if(now-assignment.progressed>stallTimeout) {
+				drop(source,"stalled");
+			}
+		}
+		if(now-lastProgress>timeout) {
+			fail(new IOException("no progress downloading "+filename+" for "+timeout+" ms"));
+			return;
+		}
+		checker = Utils.getInstance().setTimeout(this::check, checkInterval);
+	}
+
+	private void complete() {
+		if(checker!=null) checker.cancel();
+		try {
+			out.close();
+			if(state!=null) state.delete();
+			log.info("downloaded "+filename+", "+size+" bytes from "+sources);
+			result.complete(size);
+		} catch (IOException e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		if(checker!=null) checker.cancel();
+		for(Source source : new ArrayList<>(sources)) {
+			if(source.assignment!=null && source.assignment.client!=null) source.assignment.client.cancel();
+		}
+		try {
+			if(state!=null) state.save();
+			out.close();
+		} catch (IOException e2) {
+			log.warning("exception closing "+filename+": "+e2.getMessage());
+		}
+		result.completeExceptionally(e);
+	}
+}
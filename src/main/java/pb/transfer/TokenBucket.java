@@ -0,0 +1,91 @@
+package pb.transfer;
+
+/**
+ * Limits the rate that bytes are sent at. The bucket fills with tokens at
+ * the rate, up to a burst, and each byte sent takes a token. Bytes may be
+ * taken before there are tokens for them, leaving the bucket in debt, and
+ * the sender is told how long to wait until the debt is paid. A rate of 0
+ * is unlimited.
+ * <br/>
+ * A transfer is usually limited by a bucket of its own and a bucket shared
+ * by all transfers to the same peer, see {@link #take(long, TokenBucket...)}.
+ * @author aaron
+ *
+ */
+public class TokenBucket {
+
+	/**
+	 * Bytes per second, 0 for unlimited.
+	 */
+	private final long rate;
+
+	/**
+	 * Most tokens the bucket holds.
+	 */
+	private final long burst;
+
+	private double tokens;
+
+	/**
+	 * When tokens were last added, in ns.
+	 */
+	private long filled;
+
+	/**
+	 * A bucket that allows up to one second of bytes in a burst.
+	 * @param rate bytes per second, 0 for unlimited
+	 */
+	public TokenBucket(long rate) {
+		this(rate,rate);
+	}
+
+	/**
+	 *
+	 * @param rate bytes per second, 0 for unlimited
+	 * @param burst most bytes that may be sent at once after being idle
+	 */
+	public TokenBucket(long rate, long burst) {
+		this.rate=rate;
+		this.burst=Math.max(1,burst);
+		this.tokens=this.burst;
+		this.filled=System.nanoTime();
+	}
+
+	/**
+	 *
+	 * @return bytes per second, 0 for unlimited
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Take tokens for bytes that are about to be sent.
+	 * @param bytes
+	 * @return time in ms to wait before sending any more bytes, 0 if there
+	 * is no need to wait
+	 */
+	public synchronized long take(long bytes) {
+		if(rate<=0) return 0;
+		long now = System.nanoTime();
+		tokens = Math.min(burst,tokens+(now-filled)*rate/1e9);
+		filled = now;
+		tokens -= bytes;
+		if(tokens>=0) return 0;
+		return (long)Math.ceil(-tokens*1000/rate);
+	}
+
+	/**
+	 * Take tokens from each of a number of buckets.
+	 * @param bytes
+	 * @param buckets any of which may be null
+	 * @return the longest time in ms to wait before sending any more bytes
+	 */
+	public static long take(long bytes, TokenBucket... buckets) {
+		long wait = 0;
+		for(TokenBucket bucket : buckets) {
+			if(bucket!=null) wait = Math.max(wait,bucket.take(bytes));
+		}
+		return wait;
+	}
+}
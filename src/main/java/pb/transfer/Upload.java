@@ -0,0 +1,115 @@
+package pb.transfer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A file transfer on a data connection, as it is scheduled by the
+ * {@link pb.transfer.UploadEngine}, and its throughput so far.
+ * @author aaron
+ *
+ */
+public class Upload {
+
+	final SocketChannel channel;
+
+	SelectionKey key;
+
+	/**
+	 * The token of the connection, until it has all been read.
+	 */
+	final ByteBuffer token = ByteBuffer.allocate(8);
+
+	/**
+	 * The offer the token was for, null until then.
+	 */
+	volatile DataServer.Offer offer=null;
+
+	/**
+	 * When the connection was accepted and when sending started, in ns.
+	 */
+	final long accepted = System.nanoTime();
+
+	volatile long started=0;
+
+	/**
+	 * When the rate limits allow sending again, in ns, 0 if they do.
+	 */
+	long resumeAt=0;
+
+	/**
+	 * When bytes were last sent, or sending was last allowed to go on, in ns.
+	 */
+	long progressed=0;
+
+	/**
+	 * Whether the connection was last seen able to take more bytes.
+	 */
+	boolean writable=false;
+
+	private volatile long sent=0;
+
+	private volatile long finished=0;
+
+	Upload(SocketChannel channel) {
+		this.channel=channel;
+	}
+
+	void sent(long bytes) {
+		sent+=bytes;
+	}
+
+	void finished() {
+		finished=System.nanoTime();
+	}
+
+	/**
+	 *
+	 * @return the other side of the data connection
+	 */
+	public String getPeer() {
+		return String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 *
+	 * @return bytes sent so far
+	 */
+	public long getBytesSent() {
+		return sent;
+	}
+
+	/**
+	 *
+	 * @return bytes of the offer, or -1 if the token has not been read
+	 */
+	public long getLength() {
+		DataServer.Offer o = offer;
+		return o==null ? -1 : o.length;
+	}
+
+	/**
+	 *
+	 * @return whether sending has started, it may be waiting for a free slot
+	 */
+	public boolean isStarted() {
+		return started!=0;
+	}
+
+	/**
+	 *
+	 * @return bytes per second since sending started, until it finished
+	 */
+	public double getThroughput() {
+		if(started==0) return 0;
+		long end = finished!=0 ? finished : System.nanoTime();
+		return end==started ? 0 : sent*1e9/(end-started);
+	}
+
+	@Override
+	public String toString() {
+		return getPeer()+" "+sent+"/"+getLength()+" bytes at "
+				+String.format("%.1f",getThroughput()/1e6)+" MB/s";
+	}
+}
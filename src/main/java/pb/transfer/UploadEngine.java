@@ -0,0 +1,335 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * Sends the uploads of a {@link pb.transfer.DataServer} on a single thread,
+ * with non-blocking data connections and a selector, so that any number of
+ * peers can download from this peer at the same time.
+ * <br/>
+ * At most {@code pb.maxUploads} uploads (default 8) are sent at once, others
+ * wait their turn in the order their tokens arrived. The uploads being sent
+ * are served round robin: each time round, every upload whose connection can
+ * take more bytes is sent at most one slice of its file with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so a fast downloader can not starve a slow one and no bytes pass through
+ * the JVM. An upload whose rate limits are used up sits out until they refill.
+ * An upload that is not held back by its rate limits and has not been able
+ * to send a byte for {@code pb.uploadStallTimeout} ms (default 30000), because
+ * the other side stopped reading, is closed so that it gives up its slot.
+ * <br/>
+ * The throughput of each upload is logged when it finishes, and the uploads
+ * in progress can be seen with {@link #getUploads()}.
+ * @author aaron
+ *
+ */
+class UploadEngine implements Runnable {
+	private static Logger log = Logger.getLogger(UploadEngine.class.getName());
+
+	/**
+	 * Most uploads sent at once.
+	 */
+	private static final int maxUploads = Integer.parseInt(
+			Utils.getInstance().getProperty("pb.maxUploads","8"));
+
+	/**
+	 * Time in ms an upload may go without sending a byte.
+	 */
+	private static final long stallTimeout = Long.parseLong(
+			Utils.getInstance().getProperty("pb.uploadStallTimeout","30000"));
+
+	/**
+	 * Most bytes sent to an upload in each turn.
+	 */
+	private static final long slice = 16*Utils.chunkSize;
+
+	/**
+	 * Longest wait in the selector, so tokens that never arrive and uploads
+	 * that stall are noticed.
+	 */
+	private static final long tick = 1000;
+
+	private final DataServer server;
+
+	private final long tokenTimeout;
+
+	private final Selector selector;
+
+	private final Thread thread;
+
+	/**
+	 * Connections accepted but not yet registered with the selector.
+	 */
+	private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Every upload, for reporting.
+	 */
+	private final Set<Upload> uploads = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Uploads whose token has not arrived, only used by the engine's thread.
+	 */
+	private final List<Upload> connecting = new ArrayList<>();
+
+	/**
+	 * Uploads waiting for a slot, only used by the engine's thread.
+	 */
+	private final ArrayDeque<Upload> waiting = new ArrayDeque<>();
+
+	/**
+	 * Uploads being sent, in round robin order, only used by the engine's thread.
+	 */
+	private final List<Upload> active = new ArrayList<>();
+
+	private volatile boolean stopping=false;
+
+	/**
+	 *
+	 * @param server that holds the offers
+	 * @param tokenTimeout time in ms a connection has to send its token
+	 * @throws IOException if the selector can't be opened
+	 */
+	UploadEngine(DataServer server, long tokenTimeout) throws IOException {
+		this.server=server;
+		this.tokenTimeout=tokenTimeout;
+		selector=Selector.open();
+		thread=Utils.getInstance().newThread(this,"UploadEngine");
+		thread.start();
+	}
+
+	/**
+	 * Start serving a data connection.
+	 * @param channel
+	 */
+	void add(SocketChannel channel) {
+		accepted.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stop once the uploads that have their token have been sent. Connections
+	 * still waiting to send their token are closed.
+	 */
+	void stopWhenIdle() {
+		stopping=true;
+		selector.wakeup();
+	}
+
+	/**
+	 *
+	 * @return the uploads being sent or waiting to be sent
+	 */
+	List<Upload> getUploads() {
+		return new ArrayList<>(uploads);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(!stopping || !accepted.isEmpty() || !connecting.isEmpty()
+					|| !waiting.isEmpty() || !active.isEmpty()) {
+				long now = System.nanoTime();
+				register();
+				expire(now);
+				start();
+				resume(now);
+				selector.select(Math.max(1,timeToWake(now)));
+				now = System.nanoTime();
+				for(SelectionKey key : selector.selectedKeys()) {
+					Upload upload = (Upload) key.attachment();
+					if(!key.isValid()) continue;
+					if(key.isReadable()) readToken(upload);
+					else if(key.isWritable()) upload.writable=true;
+				}
+				selector.selectedKeys().clear();
+				sendRound(now);
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			log.severe("upload engine failed: "+e.getMessage());
+		} finally {
+			for(Upload upload : uploads) close(upload,null);
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warning("exception closing selector: "+e.getMessage());
+			}
+		}
+		log.info("UploadEngine terminating");
+	}
+
+	/**
+	 * Register the accepted connections to read their tokens.
+	 */
+	private void register() {
+		SocketChannel channel;
+		while((channel=accepted.poll())!=null) {
+			Upload upload = new Upload(channel);
+			uploads.add(upload);
+			if(stopping) {
+				close(upload,null);
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				upload.key = channel.register(selector,SelectionKey.OP_READ,upload);
+				connecting.add(upload);
+			} catch (IOException e) {
+				close(upload,"could not register data connection: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Close connections that have not sent their token in time, and uploads
+	 * that have stopped sending although their rate limits allow it.
+	 */
+	private void expire(long now) {
+		for(int i=connecting.size()-1;i>=0;i--) {
+			Upload upload = connecting.get(i);
+			if(stopping || now-upload.accepted>TimeUnit.MILLISECONDS.toNanos(tokenTimeout)) {
+				connecting.remove(i);
+				close(upload,stopping ? null : "data connection did not send its token in time");
+			}
+		}
+		for(int i=active.size()-1;i>=0;i--) {
+			Upload upload = active.get(i);
+			if(upload.resumeAt==0 && now-upload.progressed>TimeUnit.MILLISECONDS.toNanos(stallTimeout)) {
+				active.remove(i);
+				close(upload,"data connection did not take any bytes in time: "+upload);
+			}
+		}
+	}
+
+	private void readToken(Upload upload) {
+		try {
+			if(upload.channel.read(upload.token)<0) throw new IOException("data connection closed before its token");
+			if(upload.token.hasRemaining()) return;
+			connecting.remove(upload);
+			upload.offer = server.take(upload.token.getLong(0));
+			if(upload.offer==null) throw new IOException("data connection has an unknown token");
+			upload.key.interestOps(0);
+			waiting.add(upload);
+		} catch (IOException e) {
+			connecting.remove(upload);
+			close(upload,e.getMessage());
+		}
+	}
+
+	/**
+	 * Start waiting uploads while there are free slots.
+	 */
+	private void start() {
+		while(active.size()<maxUploads && !waiting.isEmpty()) {
+			Upload upload = waiting.poll();
+			upload.started = System.nanoTime();
+			upload.progressed = upload.started;
+			upload.key.interestOps(SelectionKey.OP_WRITE);
+			active.add(upload);
+		}
+	}
+
+	/**
+	 * Let uploads whose rate limits have refilled be sent again.
+	 */
+	private void resume(long now) {
+		for(Upload upload : active) {
+			if(upload.resumeAt!=0 && now-upload.resumeAt>=0) {
+				upload.resumeAt=0;
+				upload.progressed=now;
+				upload.key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/**
+	 * @return time in ms until an upload's rate limits refill, or the tick
+	 */
+	private long timeToWake(long now) {
+		long wake = tick;
+		for(Upload upload : active) {
+			if(upload.resumeAt!=0) wake = Math.min(wake,TimeUnit.NANOSECONDS.toMillis(upload.resumeAt-now)+1);
+		}
+		return wake;
+	}
+
+	/**
+	 * Send a slice to each upload that can take it, in turn.
+	 */
+	private void sendRound(long now) {
+		for(int i=0;i<active.size();) {
+			Upload upload = active.get(i);
+			if(!upload.writable) {
+				i++;
+				continue;
+			}
+			upload.writable=false;
+			DataServer.Offer offer = upload.offer;
+			try {
+				long sent = upload.getBytesSent();
+				long n = 0;
+				if(sent<offer.length) {
+					n = offer.file.transferTo(offer.position+sent,Math.min(slice,offer.length-sent),upload.channel);
+					if(n==0 && offer.position+sent>=offer.file.size()) throw new IOException("file is shorter than offered");
+					upload.sent(n);
+					if(n>0) upload.progressed=now;
+				}
+				if(upload.getBytesSent()>=offer.length) {
+					upload.channel.shutdownOutput();
+					active.remove(i);
+					upload.finished();
+					log.info("upload finished: "+upload);
+					close(upload,null);
+					continue;
+				}
+				long wait = TokenBucket.take(n,offer.limits);
+				if(wait>0) {
+					upload.resumeAt = now+TimeUnit.MILLISECONDS.toNanos(wait);
+					upload.key.interestOps(0);
+				}
+				i++;
+			} catch (IOException e) {
+				active.remove(i);
+				close(upload,"data transfer failed: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Close an upload's connection and file.
+	 * @param upload
+	 * @param reason to log as a warning, or null
+	 */
+	private void close(Upload upload, String reason) {
+		if(reason!=null) log.warning(reason);
+		uploads.remove(upload);
+		if(upload.key!=null) upload.key.cancel();
+		try {
+			upload.channel.close();
+		} catch (IOException e) {
+			log.warning("exception closing data connection: "+e.getMessage());
+		}
+		DataServer.Offer offer = upload.offer;
+		if(offer!=null) {
+			try {
+				offer.release.close();
+			} catch (IOException e) {
+				log.warning("exception closing file: "+e.getMessage());
+			}
+		}
+	}
+}
@@ -1,32 +1,72 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. The callbacks for each event are kept in an array
+ * that is never modified once published: adding or removing a callback
+ * replaces the array. Emitting reads the arrays without any lock, so a slow
+ * callback does not hold up other emitters, or senders on an endpoint, and
+ * callbacks may add or remove callbacks while an event is being emitted.
+ * A callback removed during an emit may still receive that event.
+ * <br/>
+ * The arrays of each event name are held by an {@link EventSlot} that is kept
+ * once created, so a caller that emits the same event many times can look
+ * its slot up once and then emit to it without hashing the name, see
+ * {@link #localEmit(EventSlot, Object...)}.
+ * @see {@link pb.utils.ThreadedEventable}
  * @author aaron
  *
  */
-public class Eventable extends Thread {
+public class Eventable {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
 	
+	private static final IEventCallback[] noCallbacks = new IEventCallback[0];
+	
+	/**
+	 * The callbacks of one event name.
+	 */
+	public static final class EventSlot {
+		private final String eventName;
+		
+		private volatile IEventCallback[] callbacks = noCallbacks;
+		
+		private EventSlot(String eventName) {
+			this.eventName=eventName;
+		}
+		
+		/**
+		 * 
+		 * @return the name of the event
+		 */
+		public String getEventName() {
+			return eventName;
+		}
+	}
+	
 	/**
 	 * Event callbacks
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
+	private final Map<String,EventSlot> callbacks = new ConcurrentHashMap<>();
+	
+	/**
+	 * Not used by the event methods. Subclasses use it in place of
+	 * synchronizing on this object, so that virtual threads can block while
+	 * holding it without pinning their carrier thread.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
 	
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		
 	}
 	
 	/**
@@ -37,16 +77,16 @@ public class Eventable extends Thread {
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
+		EventSlot allSlot = callbacks.get("*");
+		IEventCallback[] all = allSlot==null ? noCallbacks : allSlot.callbacks;
+		if(all.length>0) {
+			// the same args for every "*" callback, they must not modify them
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args,0,newargs,1,args.length);
+			for(IEventCallback callback : all) callback.callback(newargs);
 			hit=true;
 		}
 		if(localEmit(eventName,args)) hit=true;
@@ -61,15 +101,34 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
-		}
-		return hit;
+	public boolean localEmit(String eventName, Object... args) {
+		EventSlot slot = callbacks.get(eventName);
+		if(slot==null) return false;
+		return localEmit(slot,args);
+	}
+	
+	/**
+	 * Send event args to all of the callbacks registered for the slot's
+	 * event name.
+	 * @param slot from {@link #slot(String)} of this object
+	 * @param args
+	 * @return true if at least one callback received the event
+	 */
+	public boolean localEmit(EventSlot slot, Object... args) {
+		IEventCallback[] named = slot.callbacks;
+		if(named.length==0) return false;
+		for(IEventCallback callback : named) callback.callback(args);
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @return the slot that holds the callbacks of the event name, created
+	 * if there is none yet
+	 */
+	public EventSlot slot(String eventName) {
+		return callbacks.computeIfAbsent(eventName,EventSlot::new);
 	}
 	
 	/**
@@ -79,11 +138,39 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
-		}
-		callbacks.get(eventName).add(callback);
+	public Eventable on(String eventName, IEventCallback callback) {
+		callbacks.compute(eventName,(name,slot)->{
+			if(slot==null) slot=new EventSlot(name);
+			IEventCallback[] existing = slot.callbacks;
+			IEventCallback[] added = Arrays.copyOf(existing,existing.length+1);
+			added[existing.length]=callback;
+			slot.callbacks=added;
+			return slot;
+		});
+		return this;
+	}
+	
+	/**
+	 * Remove a callback that was added for an event. If it was added more
+	 * than once, only one of them is removed.
+	 * @param eventName event name
+	 * @param callback the callback that was given to {@link #on(String, IEventCallback)}
+	 * @return this event handler for chaining
+	 */
+	public Eventable off(String eventName, IEventCallback callback) {
+		callbacks.computeIfPresent(eventName,(name,slot)->{
+			IEventCallback[] existing = slot.callbacks;
+			for(int i=0;i<existing.length;i++) {
+				if(existing[i]!=callback) continue;
+				IEventCallback[] removed = new IEventCallback[existing.length-1];
+				System.arraycopy(existing,0,removed,0,i);
+				System.arraycopy(existing,i+1,removed,i,existing.length-i-1);
+				// the slot is kept, it may have been looked up already
+				slot.callbacks = removed.length==0 ? noCallbacks : removed;
+				break;
+			}
+			return slot;
+		});
 		return this;
 	}
 }
@@ -0,0 +1,98 @@
+package pb.utils;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time, in the order they were given, on a shared
+ * executor. Many serial executors can share one pool of threads: each keeps
+ * its own queue, so tasks of one serial executor never run concurrently or
+ * out of order, while tasks of different ones run in parallel. After
+ * {@link #batchSize} tasks a serial executor gives its thread back to the
+ * pool, so a busy one does not starve the others.
+ *
+ * @see {@link pb.utils.Utils#getEventExecutor()}
+ * @author aaron
+ *
+ */
+public class SerialExecutor implements Executor {
+	private static Logger log = Logger.getLogger(SerialExecutor.class.getName());
+	
+	/**
+	 * Tasks to run before giving the thread back to the pool.
+	 */
+	private static final int batchSize = 64;
+	
+	private final Executor executor;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+	
+	/**
+	 * Whether a drain of the queue has been given to the executor.
+	 */
+	private boolean draining=false;
+	
+	/**
+	 * Initialise with the executor to run tasks on.
+	 * @param executor
+	 */
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Queue a task to run after all of those already queued.
+	 * @param task
+	 */
+	@Override
+	public void execute(Runnable task) {
+		lock.lock();
+		try {
+			tasks.add(task);
+			if(draining) return;
+			draining=true;
+		} finally {
+			lock.unlock();
+		}
+		executor.execute(this::drain);
+	}
+	
+	/**
+	 * @return number of tasks waiting to run
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return tasks.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void drain() {
+		for(int i=0;i<batchSize;i++) {
+			Runnable task;
+			lock.lock();
+			try {
+				task = tasks.poll();
+				if(task==null) {
+					draining=false;
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.severe("task failed: "+e);
+			}
+		}
+		// let other serial executors have a turn, then carry on
+		executor.execute(this::drain);
+	}
+}
@@ -0,0 +1,84 @@
+package pb.utils;
+
+/**
+ * An eventable object that runs on its own thread. The thread is not the
+ * object itself, it is created by {@link pb.utils.Utils#newThread(Runnable, String)}
+ * when the object is started, so it may be either a platform thread or a
+ * virtual thread depending on the configured thread mode. The methods mirror
+ * those of {@link java.lang.Thread} that the managers and endpoints use.
+ * @author aaron
+ *
+ */
+public class ThreadedEventable extends Eventable implements Runnable {
+	
+	/**
+	 * The thread running this object, once started.
+	 */
+	private volatile Thread thread;
+	
+	/**
+	 * Name to give the thread.
+	 */
+	private String name=getClass().getSimpleName();
+	
+	/**
+	 * Override to do the work of the thread.
+	 */
+	@Override
+	public void run() {
+		
+	}
+	
+	/**
+	 * Create the thread and start it running {@link #run()}.
+	 * @throws IllegalThreadStateException if already started
+	 */
+	public synchronized void start() {
+		if(thread!=null) throw new IllegalThreadStateException();
+		thread=Utils.getInstance().newThread(this,name);
+		thread.start();
+	}
+	
+	/**
+	 * Wait for the thread to terminate. Returns immediately if the thread
+	 * was never started.
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		Thread t=thread;
+		if(t!=null) t.join();
+	}
+	
+	/**
+	 * Interrupt the thread, if it was started.
+	 */
+	public void interrupt() {
+		Thread t=thread;
+		if(t!=null) t.interrupt();
+	}
+	
+	/**
+	 * 
+	 * @return true if the thread has been interrupted
+	 */
+	public boolean isInterrupted() {
+		Thread t=thread;
+		return t!=null && t.isInterrupted();
+	}
+	
+	/**
+	 * Name the thread, must be called before starting.
+	 * @param name
+	 */
+	public void setName(String name) {
+		this.name=name;
+	}
+	
+	/**
+	 * 
+	 * @return the name of the thread
+	 */
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,83 @@
+package pb.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A handle to a callback scheduled with
+ * {@link pb.utils.Utils#setTimeout(ICallback, long)}, that can be used to
+ * cancel it. Cancelling a timeout that has already expired has no effect.
+ *
+ * @see {@link pb.utils.TimerWheel}
+ * @author aaron
+ *
+ */
+public final class Timeout {
+	private static final int scheduled = 0;
+	private static final int cancelled = 1;
+	private static final int expired = 2;
+
+	private final TimerWheel wheel;
+
+	final ICallback callback;
+
+	/**
+	 * When the timeout expires, in ns relative to the start of the wheel.
+	 */
+	final long deadline;
+
+	/**
+	 * Number of turns of the wheel left before the timeout expires, only
+	 * used by the wheel's thread.
+	 */
+	long remainingRounds;
+
+	/**
+	 * Links within the wheel bucket holding this timeout, only used by the
+	 * wheel's thread.
+	 */
+	Timeout next;
+	Timeout prev;
+	TimerWheel.Bucket bucket;
+
+	private final AtomicInteger state = new AtomicInteger(scheduled);
+
+	Timeout(TimerWheel wheel, ICallback callback, long deadline) {
+		this.wheel = wheel;
+		this.callback = callback;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Stop the callback from being called, if it has not been already.
+	 * @return true if the timeout was cancelled by this call
+	 */
+	public boolean cancel() {
+		if(!state.compareAndSet(scheduled,cancelled)) return false;
+		wheel.cancelled(this);
+		return true;
+	}
+
+	/**
+	 * @return true if the timeout was cancelled before it expired
+	 */
+	public boolean isCancelled() {
+		return state.get()==cancelled;
+	}
+
+	/**
+	 * @return true if the callback has been handed to the executor
+	 */
+	public boolean isExpired() {
+		return state.get()==expired;
+	}
+
+	/**
+	 * Mark the timeout as expired.
+	 * @return false if it was cancelled first
+	 */
+	boolean expire() {
+		return state.compareAndSet(scheduled,expired);
+	}
+}
@@ -0,0 +1,269 @@
+package pb.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A hashed wheel timer. Time is divided into ticks and the wheel has one
+ * bucket per tick; a timeout is put in the bucket for the tick it expires on,
+ * with the number of turns of the wheel still to go. Scheduling and
+ * cancelling are O(1), which matters since every request, keep alive and
+ * file chunk sets a timeout, and most of them are cancelled or never fire.
+ * The price is that timeouts expire up to a tick late.
+ * <br/>
+ * A single thread turns the wheel. Expired callbacks are run on an executor,
+ * so a slow callback does not hold up the others. The tick, the size of the
+ * wheel and the number of callback threads are set with the properties
+ * {@code pb.timerTick} (ms, default 10), {@code pb.timerWheelSize} (default
+ * 512) and {@code pb.timerThreads} (default 2), or another executor can be
+ * given with {@link #setExecutor(Executor)}.
+ *
+ * @see {@link pb.utils.Utils#setTimeout(ICallback, long)}
+ * @author aaron
+ *
+ */
+public class TimerWheel implements Runnable {
+	private static Logger log = Logger.getLogger(TimerWheel.class.getName());
+
+	/**
+	 * Timeouts in a bucket, as a doubly linked list through the timeouts
+	 * themselves so that cancelled ones can be removed in O(1).
+	 */
+	static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket=this;
+			if(head==null) {
+				head=tail=timeout;
+			} else {
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if(timeout.prev!=null) timeout.prev.next=timeout.next;
+			if(timeout.next!=null) timeout.next.prev=timeout.prev;
+			if(timeout==head) head=timeout.next;
+			if(timeout==tail) tail=timeout.prev;
+			timeout.prev=null;
+			timeout.next=null;
+			timeout.bucket=null;
+		}
+	}
+
+	private final long tickNanos;
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	/**
+	 * Timeouts scheduled since the last tick, moved to the wheel by its thread.
+	 */
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Timeouts cancelled since the last tick, removed from the wheel by its thread.
+	 */
+	private final Queue<Timeout> removed = new ConcurrentLinkedQueue<>();
+
+	private final long startTime;
+
+	private final Thread thread;
+
+	private volatile Executor executor;
+
+	/**
+	 * The executor created by the wheel, shut down with the wheel.
+	 */
+	private final ExecutorService defaultExecutor;
+
+	private volatile boolean stopped=false;
+
+	/**
+	 * Metrics
+	 */
+	private final AtomicLong pending = new AtomicLong();
+	private volatile long expired=0;
+	private volatile long totalLatenessNanos=0;
+	private volatile long maxLatenessNanos=0;
+
+	/**
+	 * Initialise and start a wheel.
+	 * @param tickMillis duration of a tick in ms
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 * @param callbackThreads number of threads to run callbacks on
+	 */
+	public TimerWheel(long tickMillis, int wheelSize, int callbackThreads) {
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1,tickMillis));
+		int size = Integer.highestOneBit(Math.max(1,wheelSize)-1)<<1;
+		wheel = new Bucket[Math.max(1,size)];
+		for(int i=0;i<wheel.length;i++) wheel[i]=new Bucket();
+		mask = wheel.length-1;
+		defaultExecutor = Executors.newFixedThreadPool(Math.max(1,callbackThreads),(runnable)->{
+			Thread t = new Thread(runnable,"TimerCallback");
+			t.setDaemon(true); // the wheel thread decides when the jvm can quit
+			return t;
+		});
+		executor = defaultExecutor;
+		startTime = System.nanoTime();
+		thread = new Thread(this,"TimerWheel");
+		thread.start();
+	}
+
+	/**
+	 * Run callbacks on the given executor rather than the wheel's own threads.
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Schedule a callback.
+	 * @param callback the method to call
+	 * @param delay the delay in ms before calling the method
+	 * @return a handle to cancel the callback with
+	 * @throws IllegalStateException if the wheel has been stopped
+	 */
+	public Timeout schedule(ICallback callback, long delay) {
+		if(stopped) throw new IllegalStateException("timer has been stopped");
+		Timeout timeout = new Timeout(this,callback,
+				System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(Math.max(0,delay))-startTime);
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	void cancelled(Timeout timeout) {
+		pending.decrementAndGet();
+		removed.add(timeout);
+	}
+
+	/**
+	 * Stop turning the wheel, scheduled callbacks will not be called.
+	 */
+	public void stop() {
+		stopped=true;
+		thread.interrupt();
+		defaultExecutor.shutdown();
+	}
+
+	/**
+	 * @return number of timeouts that have neither expired nor been cancelled
+	 */
+	public long getPendingTimeouts() {
+		return pending.get();
+	}
+
+	/**
+	 * @return number of timeouts that have expired
+	 */
+	public long getExpiredTimeouts() {
+		return expired;
+	}
+
+	/**
+	 * @return mean time in ms between when timeouts should have expired
+	 * and when they did
+	 */
+	public double getMeanLateness() {
+		long n = expired;
+		if(n==0) return 0;
+		return totalLatenessNanos/1e6/n;
+	}
+
+	/**
+	 * @return largest time in ms between when a timeout should have expired
+	 * and when it did
+	 */
+	public double getMaxLateness() {
+		return maxLatenessNanos/1e6;
+	}
+
+	@Override
+	public void run() {
+		long tick=0;
+		while(!stopped) {
+			long deadline = tickNanos*(tick+1);
+			long sleep = deadline-(System.nanoTime()-startTime);
+			if(sleep>0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					break;
+				}
+				continue;
+			}
+			removeCancelled();
+			addScheduled(tick);
+			expire(wheel[(int)(tick & mask)]);
+			tick++;
+		}
+		log.info("timer wheel stopped");
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=removed.poll())!=null) {
+			if(timeout.bucket!=null) timeout.bucket.remove(timeout);
+		}
+	}
+
+	private void addScheduled(long tick) {
+		Timeout timeout;
+		while((timeout=added.poll())!=null) {
+			if(timeout.isCancelled()) continue;
+			long expiresOn = timeout.deadline/tickNanos;
+			timeout.remainingRounds = (expiresOn-tick)/wheel.length;
+			// if it should already have expired, expire it on this tick
+			wheel[(int)(Math.max(expiresOn,tick) & mask)].add(timeout);
+		}
+	}
+
+	private void expire(Bucket bucket) {
+		Timeout timeout = bucket.head;
+		while(timeout!=null) {
+			Timeout next = timeout.next;
+			if(timeout.remainingRounds<=0) {
+				bucket.remove(timeout);
+				if(timeout.expire()) run(timeout);
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void run(Timeout timeout) {
+		pending.decrementAndGet();
+		long lateness = Math.max(0,System.nanoTime()-startTime-timeout.deadline);
+		expired++;
+		totalLatenessNanos+=lateness;
+		if(lateness>maxLatenessNanos) maxLatenessNanos=lateness;
+		try {
+			executor.execute(()->{
+				try {
+					timeout.callback.callback();
+				} catch (RuntimeException e) {
+					log.severe("timeout callback failed: "+e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warning("timeout callback not run, executor has stopped");
+		}
+	}
+}
@@ -1,7 +1,13 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
 
 import pb.protocols.ICallback;
 
@@ -13,6 +19,7 @@ import pb.protocols.ICallback;
  *
  */
 public class Utils {
+	private static Logger log = Logger.getLogger(Utils.class.getName());
 	private static Utils utils;
 	
 	/**
@@ -39,10 +46,57 @@ public class Utils {
 	 * Use of a single timer object over the entire system helps
 	 * to reduce thread usage.
 	 */
-	private Timer timer = new Timer();
+	private final TimerWheel timer;
+	
+	/**
+	 * Pool that runs event callbacks, created when first needed.
+	 */
+	private Executor eventExecutor=null;
+	
+	/**
+	 * Defaults for the configurable properties, from the {@code pb.properties}
+	 * resource that the build provides.
+	 */
+	private final Properties defaults = new Properties();
+	
+	/**
+	 * Builder for virtual threads, or null when using platform threads.
+	 * Accessed reflectively since virtual threads need Java 21 but the
+	 * system still builds and runs on Java 11.
+	 */
+	private Object virtualThreadBuilder=null;
+	
+	/**
+	 * Thread.Builder#unstarted(Runnable), when using virtual threads.
+	 */
+	private Method unstarted;
+	
+	/**
+	 * Thread.Builder#name(String), when using virtual threads.
+	 */
+	private Method named;
 	
 	public Utils() {
-		timer=new Timer();
+		try(InputStream in = Utils.class.getResourceAsStream("/pb.properties")) {
+			if(in!=null) defaults.load(in);
+		} catch (IOException e) {
+			log.warning("could not read pb.properties: "+e.getMessage());
+		}
+		if("virtual".equals(getProperty("pb.threads","platform"))) {
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+				named = builder.getMethod("name",String.class);
+				unstarted = builder.getMethod("unstarted",Runnable.class);
+				log.info("using virtual threads");
+			} catch (ReflectiveOperationException e) {
+				log.warning("virtual threads are not available, using platform threads");
+				virtualThreadBuilder=null;
+			}
+		}
+		timer=new TimerWheel(Long.parseLong(getProperty("pb.timerTick","10")),
+				Integer.parseInt(getProperty("pb.timerWheelSize","512")),
+				Integer.parseInt(getProperty("pb.timerThreads","2")));
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -58,25 +112,97 @@ public class Utils {
 	 * <code>
 	 * Utils.getInstance().setTimeout(()->{doSomething();},10000);
 	 * </code>
+	 * The callback runs on one of the timer's callback threads, up to a
+	 * timer tick late, see {@link pb.utils.TimerWheel}.
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return a handle that can cancel the callback
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
+		return timer.schedule(callback, delay);
+	}
+	
+	/**
+	 * 
+	 * @return the timer used by {@link #setTimeout(ICallback, long)}, for its
+	 * metrics or to give it another executor
+	 */
+	public TimerWheel getTimer() {
+		return timer;
+	}
+	
+	/**
+	 * Return a configurable property. A system property of the same name
+	 * takes precedence over the default given in the {@code pb.properties}
+	 * resource, which takes precedence over the given default.
+	 * @param key the property name, e.g. "pb.threads"
+	 * @param def the value to use if the property is not set anywhere
+	 * @return the value of the property
+	 */
+	public String getProperty(String key,String def) {
+		return System.getProperty(key,defaults.getProperty(key,def));
+	}
+	
+	/**
+	 * Create a thread for an endpoint or a manager. When the property
+	 * {@code pb.threads} is "virtual" and the JVM supports them a virtual
+	 * thread is created, otherwise a platform thread.
+	 * @param runnable what the thread should run
+	 * @param name name of the thread
+	 * @return the thread, not yet started
+	 */
+	public Thread newThread(Runnable runnable,String name) {
+		if(virtualThreadBuilder!=null) {
+			try {
+				synchronized(virtualThreadBuilder) { // builders are not thread safe
+					return (Thread) unstarted.invoke(named.invoke(virtualThreadBuilder,name),runnable);
+				}
+			} catch (ReflectiveOperationException e) {
+				log.warning("could not create virtual thread: "+e.getMessage());
+			}
+		}
+		return new Thread(runnable,name);
+	}
+	
+	/**
+	 * @return true if {@link #newThread(Runnable, String)} creates virtual threads
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreadBuilder!=null;
+	}
+	
+	/**
+	 * The pool of threads shared by every endpoint to run the callbacks of
+	 * received events, see {@link pb.utils.SerialExecutor}. With virtual
+	 * threads each callback batch gets a new virtual thread, otherwise there
+	 * are {@code pb.eventThreads} threads, default the number of processors.
+	 * @return the executor
+	 */
+	public synchronized Executor getEventExecutor() {
+		if(eventExecutor==null) {
+			if(usesVirtualThreads()) {
+				eventExecutor = (runnable)->{newThread(runnable,"EventWorker").start();};
+			} else {
+				int threads = Integer.parseInt(getProperty("pb.eventThreads",
+						String.valueOf(Runtime.getRuntime().availableProcessors())));
+				eventExecutor = Executors.newFixedThreadPool(Math.max(1,threads),(runnable)->{
+					Thread t = new Thread(runnable,"EventWorker");
+					t.setDaemon(true); // endpoints and managers decide when the jvm can quit
+					return t;
+				});
 			}
-			
-		}, delay);
+		}
+		return eventExecutor;
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		timer.stop(); // allow jvm to quit
+		synchronized(this) {
+			if(eventExecutor instanceof ExecutorService) ((ExecutorService)eventExecutor).shutdown();
+		}
 	}
 }